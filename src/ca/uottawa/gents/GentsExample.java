@@ -14,7 +14,10 @@ public class GentsExample {
 	 */
 	public static void main(String args[]){
 		if(args.length < 2){
-			LOGGER.info("To Run Program: java LoadForCosine <path to rlabel file> <path to matrix_crs.mat file>");
+			LOGGER.info("To Run Program: java LoadForCosine <path to rlabel file> <path to matrix_crs.mat file> [column weights file]");
+		}
+		else if(args.length > 2){
+			new GentsExample(new LoadForRelatedness(args[0], args[1], args[2]));
 		}
 		else{
 			new GentsExample(args[0], args[1]);
@@ -22,8 +25,10 @@ public class GentsExample {
 	}
 	
 	public GentsExample(String labels, String matrix){
-		LoadForRelatedness loader = new LoadForRelatedness(labels, matrix);
-		
+		this(new LoadForRelatedness(labels, matrix));
+	}
+	
+	public GentsExample(LoadForRelatedness loader){
 		LOGGER.info("Distance between \"boy\" and \"boy\": " + loader.distance("boy", "boy"));
 		LOGGER.info("Distance between \"boy\" and \"girl\": " + loader.distance("boy", "girl"));
 		LOGGER.info("Distance between \"girl\" and \"boy\": " + loader.distance("girl", "boy"));
@@ -14,6 +14,9 @@ import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 
+import ca.uottawa.gents.matrix.RandomBits;
+import ca.uottawa.gents.matrix.SparseMatrix;
+
 /**
  * This program creates a matrix in the style of SuperMatrix. See:
  * Bartosz Broda,Maciej Piasecki.SuperMatrix: a General tool for lexical semantic knowledge acquisition.In Proceedings of IMCSIT'2008. pp.345~352
@@ -36,6 +39,25 @@ import java.util.logging.Logger;
  * 
  * java BuildMatrix <N|V|A> <output Directory> <output Matrix Name> <min Term Frequency> <min Context Frequency> <parsedFile 1> ... <parsedFile n>
  * 
+ * The matrix can also be built in memory without any files being written. Skip createDirectory,
+ * call loadFile, generateColumnMap and generateRowMap and then generateMatrix, which returns a
+ * SparseMatrix that can be handed directly to the matrix weighters or to LoadForRelatedness along
+ * with the labels from getRowLabels.
+ * 
+ * For corpora too large for the full matrix, useRandomIndexing switches to random indexing, see:
+ * Magnus Sahlgren (2005). "An Introduction to Random Indexing". In Methods and Applications of
+ * Semantic Indexing Workshop, TKE 2005.
+ * Every context is given a sparse index vector of a fixed number of dimensions, a few of which
+ * are +1 or -1, worked out from a hash of the context so that nothing is stored for it. As each
+ * word context pair is read the index vector of the context is added to the dense vector of the
+ * word. The memory used is then the number of words times the dimensions, however many contexts
+ * there are. The minimum context frequency is not used as contexts are not counted. The vectors
+ * are written to matrix_ri.mat in the dense format read by LoadForRelatedness, or returned by 
+ * generateVectors. Run it by giving -ri, the dimensions and the number of non-zero values in each
+ * index vector before the parsed files:
+ * 
+ * java BuildMatrix <N|V|A> <output Directory> <output Matrix Name> <min Term Frequency> <min Context Frequency> -ri <dimensions> <non-zeros> <parsedFile 1> ... <parsedFile n>
+ * 
  * TODO:
  * The matrix only accepts words in lower case with no spaces. This is done in the function "loadFile".
  * Perhaps  a regular expression could be made a parameter of this function.
@@ -66,6 +88,10 @@ public class BuildMatrix {
 	private final List<String> index2Word;
 	private final List<String> index2Context;
 	
+	//the words and contexts kept in the final matrix, in sorted order
+	private final List<String> rowLabels;
+	private final List<String> columnLabels;
+	
 	// count of each specific word or context and count of each pair
 	private final List<Integer> wordCount; //index is word ID
 	private final List<Integer> contextCount; //index is context ID
@@ -87,6 +113,14 @@ public class BuildMatrix {
 	//keeps track of the previous context's relation type
 	private String prevFeatureType;
 	
+	//size and number of non-zero values of the random index vectors, 0 when the full matrix is built
+	private int indexDimensions;
+	private int indexNonZeros;
+	private long indexSeed;
+	private int[] indexPositions;
+	//the dense vector of each word when random indexing, index is word ID
+	private final List<float[]> wordVectors;
+	
 	private static final Logger LOGGER = Logger.getLogger(BuildMatrix.class.getName());
 	
 	
@@ -116,10 +150,23 @@ public class BuildMatrix {
 			if(!dirCreated){
 				return;
 			}
-			for(int i = 5; i < args.length; i++){ 
+			int firstFile = 5;
+			if(args[5].equals("-ri") && args.length > 8){
+				buildMat.useRandomIndexing(Integer.parseInt(args[6]), Integer.parseInt(args[7]), 1);
+				firstFile = 8;
+			}
+			for(int i = firstFile; i < args.length; i++){ 
 				String file = args[i];
 				buildMat.loadFile(file);
 			}
+			
+			if(firstFile == 8){
+				//only the rows are kept when random indexing
+				buildMat.generateRowMap();
+				buildMat.writeInfo("Random Indexing Info File");
+				buildMat.writeVectors();
+				return;
+			}
 	
 			//Generates lists of columns and lists of rows
 			buildMat.generateColumnMap();
@@ -180,6 +227,9 @@ public class BuildMatrix {
 		context2Index = new TreeMap<String, Integer>();
 		index2Context = new ArrayList<String>();
 		
+		rowLabels = new ArrayList<String>();
+		columnLabels = new ArrayList<String>();
+		
 		wordCount = new ArrayList<Integer>();
 		contextCount = new ArrayList<Integer>();
 		
@@ -196,6 +246,31 @@ public class BuildMatrix {
 		entryCount = 0;
 		
 		prevFeatureType = "";
+		
+		indexDimensions = 0;
+		wordVectors = new ArrayList<float[]>();
+	}
+	
+	/**
+	 * Builds dense word vectors by random indexing rather than the full matrix. This
+	 * must be called before any files are loaded. Each context's index vector has the
+	 * given number of dimensions with nonZeros of them set to +1 or -1, chosen from 
+	 * the seed and a hash of the context. There can be no more non-zero values than
+	 * dimensions.
+	 * 
+	 * @param dimensions
+	 * @param nonZeros
+	 * @param seed
+	 */
+	public void useRandomIndexing(int dimensions, int nonZeros, long seed) {
+		if(dimensions < 1 || nonZeros < 1 || nonZeros > dimensions){
+			throw new IllegalArgumentException("Random indexing needs between 1 and " + dimensions + " non-zero values: " + nonZeros);
+		}
+		indexDimensions = dimensions;
+		indexNonZeros = nonZeros;
+		indexSeed = seed;
+		//the positions taken so far in the index vector being made
+		indexPositions = new int[nonZeros];
 	}
 	
 	/**
@@ -269,6 +344,118 @@ public class BuildMatrix {
 	}
 	
 
+	/**
+	 * Builds the final matrix in memory rather than writing it to matrix_crs.mat.
+	 * The rows and columns are in the same sorted order as the rlabel and clabel
+	 * files and contexts below the minimum frequency are left out. This must be
+	 * called after generateColumnMap and generateRowMap.
+	 * 
+	 * @return
+	 */
+	public SparseMatrix generateMatrix() {
+		int[] pointers = new int[rowCount+1];
+		int[] ids = new int[entryCount];
+		double[] vals = new double[entryCount];
+		int entry = 0;
+		int row = 0;
+		for(int i = 0; i < rowSort2orig.length; i++){
+			int rowID = rowSort2orig[i];
+			if(rowID != -1){
+				Map<Integer, Integer> mappedKeyValue = new TreeMap<Integer, Integer>();
+				Map<Integer, Integer> counts = pairCounter.get(rowID);
+				for(int key : counts.keySet()){
+					if(columnOrig2sort[key] != -1){
+						mappedKeyValue.put(columnOrig2sort[key], counts.get(key));
+					}
+				}
+				for(int key : mappedKeyValue.keySet()){
+					ids[entry] = key;
+					vals[entry] = mappedKeyValue.get(key);
+					entry++;
+				}
+				row++;
+				pointers[row] = entry;
+			}
+		}
+		return new SparseMatrix(rowCount, columnCount, pointers, ids, vals);
+	}
+	
+	/**
+	 * Gets the random indexing vectors of the words kept as rows, in the order of
+	 * the rows. The vector of row i is found at positions i*dimensions up to 
+	 * (i+1)*dimensions-1, which is the form taken by LoadForRelatedness. This must
+	 * be called after generateRowMap.
+	 * 
+	 * @return
+	 */
+	public float[] generateVectors() {
+		if((long)rowCount * indexDimensions > Integer.MAX_VALUE){
+			throw new IllegalStateException(rowCount + " rows of " + indexDimensions + " dimensions need more values than an array can hold");
+		}
+		float[] vectors = new float[rowCount * indexDimensions];
+		int row = 0;
+		for(int i = 0; i < rowSort2orig.length; i++){
+			int rowID = rowSort2orig[i];
+			if(rowID != -1){
+				System.arraycopy(wordVectors.get(rowID), 0, vectors, row * indexDimensions, indexDimensions);
+				row++;
+			}
+		}
+		return vectors;
+	}
+	
+	/**
+	 * Writes the random indexing vectors of the words kept as rows to matrix_ri.mat.
+	 * The first line gives the number of rows and dimensions and each line after holds
+	 * the vector of one row, in the same order as the rlabel file.
+	 */
+	public void writeVectors() {
+		try{
+			String outFile = fullDirectory + "/matrix_ri.mat";
+			BufferedWriter vectorWriter = new BufferedWriter(new FileWriter(outFile));
+			LOGGER.info("Building: " + outFile);
+			
+			vectorWriter.write(rowCount + " " + indexDimensions + "\n");
+			int row = 0;
+			for(int i = 0; i < rowSort2orig.length; i++){
+				int rowID = rowSort2orig[i];
+				if(rowID != -1){
+					float[] vector = wordVectors.get(rowID);
+					for(int j = 0; j < vector.length; j++){
+						vectorWriter.write(vector[j] + " ");
+					}
+					vectorWriter.write("\n");
+					row++;
+					if(row % 10000 == 0){
+						LOGGER.info("Processed " + row + " rows");
+					}
+				}
+			}
+			vectorWriter.close();
+		}
+		catch(Exception e){
+			LOGGER.warning(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Gets the words used as rows of the matrix, in the order of the rows.
+	 * 
+	 * @return
+	 */
+	public List<String> getRowLabels() {
+		return rowLabels;
+	}
+	
+	/**
+	 * Gets the contexts used as columns of the matrix, in the order of the columns.
+	 * 
+	 * @return
+	 */
+	public List<String> getColumnLabels() {
+		return columnLabels;
+	}
+
 	/**
 	 * Write out the features, nz, tf and entropy.
 	 * 
@@ -416,9 +603,12 @@ public class BuildMatrix {
 	 */
 	public void generateRowMap() {
 		try{
-			String outFile = fullDirectory + "/" + matrixName + ".rlabel";
-			BufferedWriter rowLabelWriter = new BufferedWriter(new FileWriter(outFile));
-			LOGGER.info("Building: " + outFile);
+			BufferedWriter rowLabelWriter = null;
+			if(fullDirectory != null){
+				String outFile = fullDirectory + "/" + matrixName + ".rlabel";
+				rowLabelWriter = new BufferedWriter(new FileWriter(outFile));
+				LOGGER.info("Building: " + outFile);
+			}
 			ArrayList<String> rows = new ArrayList<String>(word2Index.keySet());
 		    Collections.sort(rows);
 			rowSort2orig = new int[rows.size()];
@@ -431,15 +621,22 @@ public class BuildMatrix {
 				if(wordCount.get(wordID) >= minRows){
 					rowSort2orig[i] = wordID;
 					//rowOrig2sort[wordID] = i;
-					rowLabelWriter.write(rows.get(i) + "\n");
+					rowLabels.add(rows.get(i));
+					if(rowLabelWriter != null){
+						rowLabelWriter.write(rows.get(i) + "\n");
+					}
 					rowCount++;
-					entryCount += getCount(pairCounter.get(wordID));
+					if(indexDimensions == 0){
+						entryCount += getCount(pairCounter.get(wordID));
+					}
 				}
 				else{
 					rowSort2orig[i] = -1;
 				}
 			}
-			rowLabelWriter.close();
+			if(rowLabelWriter != null){
+				rowLabelWriter.close();
+			}
 		}
 		catch(Exception e){
 	    	 LOGGER.warning(e.getMessage());
@@ -474,10 +671,13 @@ public class BuildMatrix {
 	 */
 	public void generateColumnMap() {
 		try{
-			String outFile = fullDirectory + "/" + matrixName + ".clabel";
-			BufferedWriter columnLabelWriter = new BufferedWriter(new FileWriter(outFile));
-			//System.out.println("Building: " + outFile);
-			LOGGER.info("Building: " + outFile);
+			BufferedWriter columnLabelWriter = null;
+			if(fullDirectory != null){
+				String outFile = fullDirectory + "/" + matrixName + ".clabel";
+				columnLabelWriter = new BufferedWriter(new FileWriter(outFile));
+				//System.out.println("Building: " + outFile);
+				LOGGER.info("Building: " + outFile);
+			}
 			ArrayList<String> columns = new ArrayList<String>(context2Index.keySet());
 		    Collections.sort(columns);
 			columnSort2orig = new int[contextCounter];
@@ -492,7 +692,10 @@ public class BuildMatrix {
 				if(contextCount.get(contextID) >= minColumns){
 					columnSort2orig[goodWordCount] = contextID;
 					columnOrig2sort[contextID] = goodWordCount;
-					columnLabelWriter.write(columns.get(i) + "\n");
+					columnLabels.add(columns.get(i));
+					if(columnLabelWriter != null){
+						columnLabelWriter.write(columns.get(i) + "\n");
+					}
 					columnCount++;
 					goodWordCount++;
 				}
@@ -500,7 +703,9 @@ public class BuildMatrix {
 					columnSort2orig[i] = -1;
 				}
 			}
-			columnLabelWriter.close();
+			if(columnLabelWriter != null){
+				columnLabelWriter.close();
+			}
 		}
 		catch(Exception e){
 	    	 LOGGER.warning(e.getMessage());
@@ -571,8 +776,7 @@ public class BuildMatrix {
 								String word = parts[0];
 								String context = parts[1] + ":" + parts[2];
 								int wordID = getWord(word);
-								int contextID = getContext(context);
-								countPair(wordID, contextID);
+								addPair(wordID, context);
 							}
 							if(parts[1].endsWith(":"+pos) && parts[0].matches("^[a-zA-Z]+$") && parts[2].matches("^[a-z]+$")){
 							//if(parts[1].endsWith(":"+POS) && parts[0].matches("^[a-zA-Z _-]+$") && parts[2].matches("^[a-zA-Z _-]+$")){
@@ -580,8 +784,7 @@ public class BuildMatrix {
 								String[] bits = parts[1].split(":");
 								String context = bits[0]+":"+bits[1]+"-R:"+ bits[2] + ":" + parts[0];
 								int wordID = getWord(word);
-								int contextID = getContext(context);
-								countPair(wordID, contextID);
+								addPair(wordID, context);
 							}
 						}
 					}
@@ -596,6 +799,63 @@ public class BuildMatrix {
 	}
 	
 
+	/**
+	 * Records a word context pair, counting it in the matrix or adding the context's
+	 * index vector to the word's vector when random indexing.
+	 * 
+	 * @param word
+	 * @param context
+	 */
+	private void addPair(int word, String context) {
+		if(indexDimensions > 0){
+			indexPair(word, context);
+		}
+		else{
+			countPair(word, getContext(context));
+		}
+	}
+	
+	/**
+	 * Adds the index vector of a context to the vector of a word. Each non-zero value
+	 * of the index vector is placed and signed by random bits found from the hash of 
+	 * the context, so the same context always gives the same index vector. A position
+	 * already taken is drawn again, so the values are all +1 or -1 in different places.
+	 * 
+	 * @param word
+	 * @param context
+	 */
+	private void indexPair(int word, String context) {
+		int wordCt = 1;
+		wordCt += wordCount.get(word);
+		wordCount.set(word, wordCt);
+		
+		if(wordVectors.size() == word){
+			wordVectors.add(new float[indexDimensions]);
+		}
+		float[] vector = wordVectors.get(word);
+		long hash = indexSeed;
+		for(int i = 0; i < context.length(); i++){
+			hash = hash * 31 + context.charAt(i);
+		}
+		int draw = 0;
+		for(int i = 0; i < indexNonZeros; i++){
+			long bits;
+			int position;
+			boolean taken;
+			do{
+				bits = RandomBits.mix(hash + draw * RandomBits.GOLDEN_GAMMA);
+				position = (int)((bits >>> 1) % indexDimensions);
+				draw++;
+				taken = false;
+				for(int j = 0; j < i && !taken; j++){
+					taken = indexPositions[j] == position;
+				}
+			} while(taken);
+			indexPositions[i] = position;
+			vector[position] += (bits & 1) == 0 ? 1 : -1;
+		}
+	}
+	
 	/**
 	 * Records a new appearance of the word context pair. This method also
 	 * counts the number of contexts in which it appears.
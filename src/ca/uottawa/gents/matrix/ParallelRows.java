@@ -0,0 +1,123 @@
+package ca.uottawa.gents.matrix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class shares a run of rows (or columns) out between several threads a few at a
+ * time. Each thread has its own worker, made by a WorkerFactory, which keeps any scratch
+ * space or partial totals it needs from one range of rows to the next. Every thread
+ * takes the next range from a shared counter until none are left, so threads that
+ * finish their ranges quickly take more of them.
+ *
+ * If any worker fails the exception it threw is thrown again once the other threads
+ * have stopped, so that results missing the rows of a failed worker are never used.
+ *
+ * It is used by ReduceMatrix, the supervised weighting, BuildThesaurus and the indexes
+ * of LoadForRelatedness.
+ *
+ * @author akennedy
+ *
+ */
+public class ParallelRows {
+
+	/**
+	 * The work done by one thread on each range of rows given to it.
+	 */
+	public interface Worker {
+		void run(int start, int end);
+	}
+
+	/**
+	 * Makes the worker of each thread.
+	 *
+	 * @param <W>
+	 */
+	public interface WorkerFactory<W extends Worker> {
+		W create();
+	}
+
+	private ParallelRows(){
+	}
+
+	/**
+	 * Runs the rows from start up to end on a new pool of threads, which is shut down
+	 * before returning. The workers are returned once all the rows are done, one for
+	 * each thread.
+	 *
+	 * @param threads
+	 * @param start
+	 * @param end
+	 * @param step
+	 * @param factory
+	 * @return
+	 */
+	public static <W extends Worker> List<W> forRows(int threads, int start, int end, int step, WorkerFactory<W> factory) {
+		if(threads < 1){
+			throw new IllegalArgumentException("Thread count must be at least 1: " + threads);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try{
+			return forRows(executor, threads, start, end, step, factory);
+		}
+		finally{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Runs the rows from start up to end as above on an executor that is kept for
+	 * later work, with threads workers.
+	 *
+	 * @param executor
+	 * @param threads
+	 * @param start
+	 * @param end
+	 * @param step
+	 * @param factory
+	 * @return
+	 */
+	public static <W extends Worker> List<W> forRows(ExecutorService executor, int threads, int start, final int end, final int step, WorkerFactory<W> factory) {
+		final AtomicInteger nextRow = new AtomicInteger(start);
+		List<W> workers = new ArrayList<W>();
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for(int t = 0; t < threads; t++){
+			final W worker = factory.create();
+			workers.add(worker);
+			tasks.add(new Callable<Object>(){
+				@Override
+				public Object call() {
+					for(int first = nextRow.getAndAdd(step); first < end; first = nextRow.getAndAdd(step)){
+						worker.run(first, Math.min(first + step, end));
+					}
+					return null;
+				}
+			});
+		}
+
+		try {
+			for(Future<Object> task : executor.invokeAll(tasks)){
+				task.get();
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException){
+				throw (RuntimeException)cause;
+			}
+			if(cause instanceof Error){
+				throw (Error)cause;
+			}
+			throw new IllegalStateException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while running rows", e);
+		}
+		return workers;
+	}
+}
@@ -0,0 +1,32 @@
+package ca.uottawa.gents.matrix;
+
+/**
+ * This class turns numbers into well mixed random bits, so that random choices can be
+ * found again from a seed and a key such as a row, a column or the hash of a context
+ * without keeping them. It is used for the index vectors of random indexing in
+ * BuildMatrix, the hyperplanes of SimHashIndex and the levels of HnswIndex.
+ *
+ * @author akennedy
+ *
+ */
+public class RandomBits {
+	//added to a seed for each step of a key, the golden ratio in 64 bits
+	public static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	private RandomBits(){
+	}
+
+	/**
+	 * Scrambles a number, this is the finishing step of the SplitMix64 generator
+	 * and gives 64 well mixed random bits for every input.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static long mix(long value) {
+		long z = value + GOLDEN_GAMMA;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,387 @@
+package ca.uottawa.gents.matrix;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * This class holds a sparse matrix in memory using the compressed row storage
+ * layout. Each row is stored as a run of column ids and values in two flat arrays
+ * and rowPointers gives the start of every row. The same class can hold a column
+ * matrix, in which case every "row" is a column of the original matrix, exactly
+ * like the matrix_ccs.mat files.
+ *
+ * It allows BuildMatrix, the matrix weighters and LoadForRelatedness to pass a
+ * matrix from one to the next without writing it to disk and parsing it again.
+ * A matrix can still be loaded from or written to the usual text format:
+ *
+ * rows columns entries
+ * col value col value ...
+ *
+ * @author akennedy
+ *
+ */
+public class SparseMatrix {
+	private static final Logger LOGGER = Logger.getLogger(SparseMatrix.class.getName());
+
+	private final int rowCount;
+	private final int columnCount;
+
+	//rowPointers[i] is the first entry of row i, rowPointers[rowCount] is the number of entries
+	private final int[] rowPointers;
+	private final int[] columnIds;
+	private final double[] values;
+
+	/**
+	 * Constructor takes the size of the matrix and the three arrays making up
+	 * the compressed rows. The arrays are used as they are and not copied.
+	 *
+	 * @param rows
+	 * @param columns
+	 * @param pointers
+	 * @param ids
+	 * @param vals
+	 */
+	public SparseMatrix(int rows, int columns, int[] pointers, int[] ids, double[] vals){
+		rowCount = rows;
+		columnCount = columns;
+		rowPointers = pointers;
+		columnIds = ids;
+		values = vals;
+	}
+
+	/**
+	 * Loads a sparse matrix file such as matrix_crs.mat or matrix_ccs.mat. The
+	 * first line gives the number of rows, columns and entries, every other line
+	 * is a list of id value pairs. For a column file the rows of the returned
+	 * matrix are the columns of the file, so the sizes from the first line are swapped.
+	 *
+	 * @param fname
+	 * @param columnFile
+	 * @return
+	 */
+	public static SparseMatrix load(String fname, boolean columnFile){
+		SparseMatrix matrix = null;
+		Reader matrixReader = null;
+		try{
+			matrixReader = new Reader(fname, columnFile);
+			matrix = matrixReader.read(matrixReader.getRowCount());
+			LOGGER.info("Loaded " + fname + ": " + matrix.getRowCount() + " : " + matrix.getColumnCount() + " : " + matrix.getEntryCount());
+		}
+		catch(Exception e){
+			LOGGER.warning(e.getMessage());
+		}
+		finally{
+			if(matrixReader != null){
+				matrixReader.close();
+			}
+		}
+		return matrix;
+	}
+
+	/**
+	 * This class reads a sparse matrix file a block of rows at a time, so that a
+	 * large matrix can be worked through without holding all of it in memory. Each
+	 * block is returned as a SparseMatrix whose row 0 is the first row of the block.
+	 * Rows missing from the end of the file are empty and lines after the last row
+	 * are ignored, as with load.
+	 */
+	public static class Reader {
+		private final String fname;
+		private final BufferedReader matrixReader;
+		private final int rows;
+		private final int columns;
+		private final int entries;
+		private int rowsRead = 0;
+		private boolean ended = false;
+
+		/**
+		 * Constructor opens the file and reads the sizes from its first line, which
+		 * are swapped for a column file.
+		 *
+		 * @param fname
+		 * @param columnFile
+		 * @throws IOException
+		 */
+		public Reader(String fname, boolean columnFile) throws IOException{
+			this.fname = fname;
+			matrixReader = new BufferedReader(new FileReader(fname));
+			try{
+				String line = matrixReader.readLine();
+				if(line == null){
+					throw new IOException("No sizes at the start of " + fname);
+				}
+				String[] sizes = line.trim().split("\\s+");
+				if(sizes.length < 3){
+					throw new IOException("Bad sizes at the start of " + fname + ": " + line);
+				}
+				rows = Integer.parseInt(sizes[columnFile ? 1 : 0]);
+				columns = Integer.parseInt(sizes[columnFile ? 0 : 1]);
+				entries = Integer.parseInt(sizes[2]);
+				if(rows < 0 || columns < 0 || entries < 0){
+					throw new IOException("Bad sizes at the start of " + fname + ": " + line);
+				}
+			}
+			catch(NumberFormatException e){
+				matrixReader.close();
+				throw new IOException("Bad sizes at the start of " + fname + ": " + e.getMessage(), e);
+			}
+			catch(IOException e){
+				matrixReader.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Reads the next count rows, or as many as are left, into a matrix of their own.
+		 *
+		 * @param count
+		 * @return
+		 * @throws IOException
+		 */
+		public SparseMatrix read(int count) throws IOException{
+			int blockRows = Math.max(0, Math.min(count, rows - rowsRead));
+			int[] pointers = new int[blockRows+1];
+			//the whole matrix has a known number of entries, a block is guessed from its share of the rows
+			int capacity = blockRows == rows ? entries : (int)Math.min(Integer.MAX_VALUE - 8, (long)entries * blockRows / Math.max(rows, 1) + 16);
+			int[] ids = new int[capacity];
+			double[] vals = new double[capacity];
+			int entry = 0;
+			int row = 0;
+
+			while(row < blockRows && !ended){
+				String line = matrixReader.readLine();
+				if(line == null){
+					ended = true;
+				}
+				else{
+					String[] parts = line.split(" ");
+					try{
+						for(int i = 1; i < parts.length; i+=2){
+							if(entry == ids.length){
+								ids = Arrays.copyOf(ids, ids.length * 2 + 1);
+								vals = Arrays.copyOf(vals, vals.length * 2 + 1);
+							}
+							ids[entry] = Integer.parseInt(parts[i-1]);
+							vals[entry] = Double.parseDouble(parts[i]);
+							entry++;
+						}
+					}
+					catch(NumberFormatException e){
+						throw new IOException("Bad entry in row " + (rowsRead + row) + " of " + fname + ": " + e.getMessage(), e);
+					}
+					row++;
+					pointers[row] = entry;
+				}
+			}
+			//rows missing from the end of the file are empty
+			for(int i = row+1; i <= blockRows; i++){
+				pointers[i] = entry;
+			}
+			if(entry != ids.length){
+				ids = Arrays.copyOf(ids, entry);
+				vals = Arrays.copyOf(vals, entry);
+			}
+			rowsRead += blockRows;
+			return new SparseMatrix(blockRows, columns, pointers, ids, vals);
+		}
+
+		/**
+		 * Gets the number of rows in the file, columns for a column file.
+		 *
+		 * @return
+		 */
+		public int getRowCount(){
+			return rows;
+		}
+
+		/**
+		 * Gets the number of columns in the file, rows for a column file.
+		 *
+		 * @return
+		 */
+		public int getColumnCount(){
+			return columns;
+		}
+
+		/**
+		 * Gets the number of rows read so far.
+		 *
+		 * @return
+		 */
+		public int getRowsRead(){
+			return rowsRead;
+		}
+
+		/**
+		 * Closes the file.
+		 */
+		public void close(){
+			try{
+				matrixReader.close();
+			}
+			catch(IOException e){
+				LOGGER.warning(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Writes the matrix out in the sparse text format used by the rest of the
+	 * package. If columnFile is true the first line gives the sizes of the original
+	 * matrix, as is done for matrix_ccs.mat files.
+	 *
+	 * @param fname
+	 * @param columnFile
+	 */
+	public void write(String fname, boolean columnFile){
+		try{
+			BufferedWriter matrixWriter = new BufferedWriter(new FileWriter(fname));
+			if(columnFile){
+				matrixWriter.write(columnCount + " " + rowCount + " " + getEntryCount() + "\n");
+			}
+			else{
+				matrixWriter.write(rowCount + " " + columnCount + " " + getEntryCount() + "\n");
+			}
+			for(int row = 0; row < rowCount; row++){
+				for(int i = rowPointers[row]; i < rowPointers[row+1]; i++){
+					matrixWriter.write(columnIds[i] + " " + values[i] + " ");
+				}
+				matrixWriter.write("\n");
+			}
+			matrixWriter.close();
+		}
+		catch(IOException e){
+			LOGGER.warning(e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the transpose of this matrix. Turning a row matrix into a column
+	 * matrix is done by counting the entries of each column and then filling
+	 * the new arrays, so the rows of each column stay in increasing order.
+	 *
+	 * @return
+	 */
+	public SparseMatrix transpose(){
+		int entries = getEntryCount();
+		int[] pointers = new int[columnCount+1];
+		for(int i = 0; i < entries; i++){
+			pointers[columnIds[i]+1]++;
+		}
+		for(int i = 0; i < columnCount; i++){
+			pointers[i+1] += pointers[i];
+		}
+		int[] next = Arrays.copyOf(pointers, columnCount);
+		int[] ids = new int[entries];
+		double[] vals = new double[entries];
+		for(int row = 0; row < rowCount; row++){
+			for(int i = rowPointers[row]; i < rowPointers[row+1]; i++){
+				int position = next[columnIds[i]]++;
+				ids[position] = row;
+				vals[position] = values[i];
+			}
+		}
+		return new SparseMatrix(columnCount, rowCount, pointers, ids, vals);
+	}
+
+	/**
+	 * Gets the sum of the values in every row.
+	 *
+	 * @return
+	 */
+	public double[] getRowSums(){
+		double[] sums = new double[rowCount];
+		for(int row = 0; row < rowCount; row++){
+			for(int i = rowPointers[row]; i < rowPointers[row+1]; i++){
+				sums[row] += values[i];
+			}
+		}
+		return sums;
+	}
+
+	/**
+	 * Gets the sum of the values in every column.
+	 *
+	 * @return
+	 */
+	public double[] getColumnSums(){
+		double[] sums = new double[columnCount];
+		for(int i = 0; i < getEntryCount(); i++){
+			sums[columnIds[i]] += values[i];
+		}
+		return sums;
+	}
+
+	/**
+	 * Gets the number of rows.
+	 *
+	 * @return
+	 */
+	public int getRowCount(){
+		return rowCount;
+	}
+
+	/**
+	 * Gets the number of columns.
+	 *
+	 * @return
+	 */
+	public int getColumnCount(){
+		return columnCount;
+	}
+
+	/**
+	 * Gets the number of non-zero entries.
+	 *
+	 * @return
+	 */
+	public int getEntryCount(){
+		return rowPointers[rowCount];
+	}
+
+	/**
+	 * Gets the index of the first entry in a row.
+	 *
+	 * @param row
+	 * @return
+	 */
+	public int getRowStart(int row){
+		return rowPointers[row];
+	}
+
+	/**
+	 * Gets the index one past the last entry in a row.
+	 *
+	 * @param row
+	 * @return
+	 */
+	public int getRowEnd(int row){
+		return rowPointers[row+1];
+	}
+
+	/**
+	 * Gets the column id of an entry.
+	 *
+	 * @param entry
+	 * @return
+	 */
+	public int getColumnId(int entry){
+		return columnIds[entry];
+	}
+
+	/**
+	 * Gets the value of an entry.
+	 *
+	 * @param entry
+	 * @return
+	 */
+	public double getValue(int entry){
+		return values[entry];
+	}
+
+}
@@ -0,0 +1,589 @@
+package ca.uottawa.gents.reducematrix;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import ca.uottawa.gents.matrix.ParallelRows;
+import ca.uottawa.gents.matrix.SparseMatrix;
+
+/**
+ * This class reduces a (usually re-weighted) term-context matrix to a small number of
+ * dense dimensions using a randomized truncated singular value decomposition, as is done
+ * in Latent Semantic Analysis. It follows:
+ * Nathan Halko, Per-Gunnar Martinsson, Joel Tropp (2011). "Finding Structure with Randomness:
+ * Probabilistic Algorithms for Constructing Approximate Matrix Decompositions". SIAM Review 53(2).
+ *
+ * The matrix is multiplied by a block of random vectors and the result is made orthonormal,
+ * giving a basis for the most important rows. This is improved by a few power iterations
+ * that multiply by the column matrix and then the row matrix again. The matrix is projected
+ * onto the basis and the small projected matrix is decomposed exactly. Only products of the
+ * sparse row and column matrices with dense blocks are needed, and each one is shared out
+ * between several threads.
+ *
+ * Each word is given the vector of its row of U times the singular values. The vectors are
+ * written one row per line after a first line giving the number of rows and dimensions:
+ *
+ * rows dimensions
+ * value value value ...
+ *
+ * This file can be loaded by LoadForRelatedness in place of a sparse matrix file, in which
+ * case cosine similarity is found from dense dot products.
+ *
+ * To Run Program:
+ * java ReduceMatrix <rlabel file> <row matrix file> <column matrix file> <dimensions> [power iterations]
+ *
+ * The vectors are written to the row matrix file with the suffix .svd-DIMENSIONS and the
+ * labels of its rows are copied next to it with the suffix .rlabel.
+ *
+ * @author akennedy
+ *
+ */
+public class ReduceMatrix {
+	private static final Logger LOGGER = Logger.getLogger(ReduceMatrix.class.getName());
+
+	//extra random vectors used beyond the dimensions kept
+	private static final int OVERSAMPLING = 10;
+	//number of rows each thread takes at a time
+	private static final int ROW_STEP = 256;
+
+	private final SparseMatrix rowMatrix;
+	private final SparseMatrix columnMatrix;
+	private int threadCount = Runtime.getRuntime().availableProcessors();
+	private int powerIterations = 2;
+	private long seed = 1;
+	private double[] singularValues;
+
+	/**
+	 * The main method loads the row and column matrices, reduces them and writes the
+	 * vectors along with their labels.
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if(args.length < 4){
+			LOGGER.info("To Run Program: java ReduceMatrix <rlabel file> <row matrix file> <column matrix file> <dimensions> [power iterations]");
+		}
+		else{
+			String rlabelFile = args[0];
+			String rowMatrixFile = args[1];
+			String columnMatrixFile = args[2];
+			int dimensions = Integer.parseInt(args[3]);
+			String outputFile = rowMatrixFile + ".svd-" + dimensions;
+
+			SparseMatrix rows = SparseMatrix.load(rowMatrixFile, false);
+			SparseMatrix columns = rows == null ? null : SparseMatrix.load(columnMatrixFile, true);
+			if(rows == null || columns == null){
+				LOGGER.warning("Could not load " + (rows == null ? rowMatrixFile : columnMatrixFile) + ", nothing is reduced");
+			}
+			else{
+				ReduceMatrix reducer = new ReduceMatrix(rows, columns);
+				if(args.length > 4){
+					reducer.setPowerIterations(Integer.parseInt(args[4]));
+				}
+				float[] vectors = reducer.reduce(dimensions);
+				writeVectors(vectors, dimensions, outputFile);
+				copyLabels(rlabelFile, outputFile + ".rlabel");
+			}
+		}
+	}
+
+	/**
+	 * Constructor takes a matrix held in memory, the column matrix is found
+	 * by transposing it.
+	 *
+	 * @param matrix
+	 */
+	public ReduceMatrix(SparseMatrix matrix){
+		this(matrix, matrix.transpose());
+	}
+
+	/**
+	 * Constructor takes both the row matrix and the column matrix, which
+	 * must hold the same values.
+	 *
+	 * @param rows
+	 * @param columns
+	 */
+	public ReduceMatrix(SparseMatrix rows, SparseMatrix columns){
+		rowMatrix = rows;
+		columnMatrix = columns;
+	}
+
+	/**
+	 * Sets the number of threads used for the matrix products, by default one
+	 * for each available processor. There must be at least one.
+	 *
+	 * @param threads
+	 */
+	public void setThreadCount(int threads) {
+		if(threads < 1){
+			throw new IllegalArgumentException("Thread count must be at least 1: " + threads);
+		}
+		threadCount = threads;
+	}
+
+	/**
+	 * Sets the number of power iterations, by default 2. More iterations give a
+	 * more accurate decomposition when the singular values fall off slowly. It
+	 * can be 0 but not less.
+	 *
+	 * @param iterations
+	 */
+	public void setPowerIterations(int iterations) {
+		if(iterations < 0){
+			throw new IllegalArgumentException("Power iterations can not be negative: " + iterations);
+		}
+		powerIterations = iterations;
+	}
+
+	/**
+	 * Sets the seed of the random vectors, the same seed gives the same vectors.
+	 *
+	 * @param randomSeed
+	 */
+	public void setSeed(long randomSeed) {
+		seed = randomSeed;
+	}
+
+	/**
+	 * Gets the singular values found by the last call to reduce, largest first.
+	 *
+	 * @return
+	 */
+	public double[] getSingularValues() {
+		return singularValues;
+	}
+
+	/**
+	 * Reduces the matrix to the given number of dimensions and returns the vector of
+	 * every row, one after another. The vector of row i takes up positions
+	 * i*dimensions to (i+1)*dimensions-1. If the matrix has fewer rows or columns than
+	 * dimensions the extra dimensions are 0.
+	 *
+	 * @param dimensions
+	 * @return
+	 */
+	public float[] reduce(int dimensions) {
+		int rows = rowMatrix.getRowCount();
+		int columns = rowMatrix.getColumnCount();
+		int width = Math.max(1, Math.min(dimensions + OVERSAMPLING, Math.min(rows, columns)));
+
+		//find a basis for the range of the matrix
+		double[] basis = multiply(rowMatrix, randomBlock(columns, width), width);
+		orthonormalize(basis, rows, width);
+		for(int i = 0; i < powerIterations; i++){
+			double[] columnBasis = multiply(columnMatrix, basis, width);
+			orthonormalize(columnBasis, columns, width);
+			basis = multiply(rowMatrix, columnBasis, width);
+			orthonormalize(basis, rows, width);
+			LOGGER.info("Power iteration: " + (i+1));
+		}
+
+		//project the matrix onto the basis, the transpose of the projection is found
+		//so that B times B transposed is the gram matrix of its rows
+		double[] projection = multiply(columnMatrix, basis, width);
+		double[] gram = gram(projection, columns, width);
+		double[] eigenvectors = new double[width * width];
+		double[] eigenvalues = eigen(gram, width, eigenvectors);
+
+		singularValues = new double[Math.min(dimensions, width)];
+		for(int i = 0; i < singularValues.length; i++){
+			singularValues[i] = Math.sqrt(Math.max(eigenvalues[i], 0));
+		}
+		LOGGER.info("Largest singular value: " + (singularValues.length > 0 ? singularValues[0] : 0));
+
+		//the vector of each row is its row of the basis times the eigenvectors, scaled by the singular values
+		float[] vectors = new float[arraySize(rows, dimensions)];
+		for(int row = 0; row < rows; row++){
+			for(int i = 0; i < singularValues.length; i++){
+				double value = 0;
+				for(int j = 0; j < width; j++){
+					value += basis[row * width + j] * eigenvectors[j * width + i];
+				}
+				vectors[row * dimensions + i] = (float)(value * singularValues[i]);
+			}
+		}
+		return vectors;
+	}
+
+	/**
+	 * Gets the number of values in a block with the given number of rows and width,
+	 * failing if there are more than an array can hold.
+	 *
+	 * @param rows
+	 * @param width
+	 * @return
+	 */
+	private static int arraySize(int rows, int width) {
+		long size = (long)rows * width;
+		if(size > Integer.MAX_VALUE){
+			throw new IllegalArgumentException(rows + " rows of " + width + " values need " + size + " values, more than an array can hold");
+		}
+		return (int)size;
+	}
+
+	/**
+	 * Makes a block of normally distributed random values with the given number
+	 * of rows and width.
+	 *
+	 * @param rows
+	 * @param width
+	 * @return
+	 */
+	private double[] randomBlock(int rows, int width) {
+		Random random = new Random(seed);
+		double[] block = new double[arraySize(rows, width)];
+		for(int i = 0; i < block.length; i++){
+			block[i] = random.nextGaussian();
+		}
+		return block;
+	}
+
+	/**
+	 * Multiplies a sparse matrix by a dense block whose rows match the columns of the
+	 * sparse matrix. The rows of the result are shared out between the threads.
+	 *
+	 * @param matrix
+	 * @param block
+	 * @param width
+	 * @return
+	 */
+	private double[] multiply(final SparseMatrix matrix, final double[] block, final int width) {
+		final double[] product = new double[arraySize(matrix.getRowCount(), width)];
+		forRows(matrix.getRowCount(), 0, new RowRange(){
+			@Override
+			public void run(int start, int end, double[] partial) {
+				for(int row = start; row < end; row++){
+					int offset = row * width;
+					for(int i = matrix.getRowStart(row); i < matrix.getRowEnd(row); i++){
+						double value = matrix.getValue(i);
+						int blockOffset = matrix.getColumnId(i) * width;
+						for(int j = 0; j < width; j++){
+							product[offset + j] += value * block[blockOffset + j];
+						}
+					}
+				}
+			}
+		});
+		return product;
+	}
+
+	/**
+	 * Finds the gram matrix, the block transposed times itself. Each thread adds
+	 * up its own rows and the totals are then added together.
+	 *
+	 * @param block
+	 * @param rows
+	 * @param width
+	 * @return
+	 */
+	private double[] gram(final double[] block, int rows, final int width) {
+		List<double[]> partials = forRows(rows, width * width, new RowRange(){
+			@Override
+			public void run(int start, int end, double[] partial) {
+				for(int row = start; row < end; row++){
+					int offset = row * width;
+					for(int i = 0; i < width; i++){
+						double value = block[offset + i];
+						if(value != 0){
+							for(int j = i; j < width; j++){
+								partial[i * width + j] += value * block[offset + j];
+							}
+						}
+					}
+				}
+			}
+		});
+		double[] gram = new double[width * width];
+		for(double[] partial : partials){
+			for(int i = 0; i < gram.length; i++){
+				gram[i] += partial[i];
+			}
+		}
+		for(int i = 0; i < width; i++){
+			for(int j = 0; j < i; j++){
+				gram[i * width + j] = gram[j * width + i];
+			}
+		}
+		return gram;
+	}
+
+	/**
+	 * Makes the columns of a tall dense block orthonormal in place. The gram matrix of
+	 * the block is factored as R transposed times R and the block is multiplied by the
+	 * inverse of R. This is done once with a small shift added to the gram matrix, which
+	 * keeps it positive definite, and then twice more to restore orthogonality. Columns
+	 * that depend on earlier ones are set to zero.
+	 *
+	 * @param block
+	 * @param rows
+	 * @param width
+	 */
+	private void orthonormalize(final double[] block, int rows, final int width) {
+		for(int pass = 0; pass < 3; pass++){
+			double[] gram = gram(block, rows, width);
+			if(pass == 0){
+				double trace = 0;
+				for(int i = 0; i < width; i++){
+					trace += gram[i * width + i];
+				}
+				double shift = 11.0 * ((double)rows * width + (double)width * (width + 1)) * Math.ulp(1.0) * trace;
+				for(int i = 0; i < width; i++){
+					gram[i * width + i] += shift;
+				}
+			}
+			final double[] factor = cholesky(gram, width);
+			forRows(rows, 0, new RowRange(){
+				@Override
+				public void run(int start, int end, double[] partial) {
+					for(int row = start; row < end; row++){
+						int offset = row * width;
+						for(int j = 0; j < width; j++){
+							double value = block[offset + j];
+							for(int i = 0; i < j; i++){
+								value -= block[offset + i] * factor[i * width + j];
+							}
+							block[offset + j] = factor[j * width + j] == 0 ? 0 : value / factor[j * width + j];
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Finds the upper triangular R with R transposed times R equal to a symmetric
+	 * matrix. Where a pivot is not positive the column is dependent on the earlier
+	 * ones and its row of R is left as zero.
+	 *
+	 * @param matrix
+	 * @param width
+	 * @return
+	 */
+	private static double[] cholesky(double[] matrix, int width) {
+		double[] factor = new double[width * width];
+		double largest = 0;
+		for(int i = 0; i < width; i++){
+			largest = Math.max(largest, matrix[i * width + i]);
+		}
+		for(int j = 0; j < width; j++){
+			double pivot = matrix[j * width + j];
+			for(int k = 0; k < j; k++){
+				pivot -= factor[k * width + j] * factor[k * width + j];
+			}
+			if(pivot > largest * 1e-15){
+				double root = Math.sqrt(pivot);
+				factor[j * width + j] = root;
+				for(int i = j+1; i < width; i++){
+					double value = matrix[j * width + i];
+					for(int k = 0; k < j; k++){
+						value -= factor[k * width + j] * factor[k * width + i];
+					}
+					factor[j * width + i] = value / root;
+				}
+			}
+		}
+		return factor;
+	}
+
+	/**
+	 * Finds the eigenvalues and eigenvectors of a small symmetric matrix using cyclic
+	 * Jacobi rotations. The eigenvalues are returned largest first and column i of
+	 * eigenvectors is the eigenvector of eigenvalue i. The matrix is changed.
+	 *
+	 * @param matrix
+	 * @param width
+	 * @param eigenvectors
+	 * @return
+	 */
+	private static double[] eigen(double[] matrix, int width, double[] eigenvectors) {
+		double[] vectors = new double[width * width];
+		for(int i = 0; i < width; i++){
+			vectors[i * width + i] = 1;
+		}
+		double norm = 0;
+		for(double value : matrix){
+			norm += value * value;
+		}
+		for(int sweep = 0; sweep < 100; sweep++){
+			double offDiagonal = 0;
+			for(int p = 0; p < width; p++){
+				for(int q = p+1; q < width; q++){
+					offDiagonal += matrix[p * width + q] * matrix[p * width + q];
+				}
+			}
+			if(offDiagonal <= norm * 1e-30){
+				break;
+			}
+			for(int p = 0; p < width; p++){
+				for(int q = p+1; q < width; q++){
+					double apq = matrix[p * width + q];
+					if(apq != 0){
+						double theta = (matrix[q * width + q] - matrix[p * width + p]) / (2 * apq);
+						double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+						if(theta == 0){
+							t = 1;
+						}
+						double c = 1 / Math.sqrt(t * t + 1);
+						double s = t * c;
+						for(int k = 0; k < width; k++){
+							double akp = matrix[k * width + p];
+							double akq = matrix[k * width + q];
+							matrix[k * width + p] = c * akp - s * akq;
+							matrix[k * width + q] = s * akp + c * akq;
+						}
+						for(int k = 0; k < width; k++){
+							double apk = matrix[p * width + k];
+							double aqk = matrix[q * width + k];
+							matrix[p * width + k] = c * apk - s * aqk;
+							matrix[q * width + k] = s * apk + c * aqk;
+						}
+						for(int k = 0; k < width; k++){
+							double vkp = vectors[k * width + p];
+							double vkq = vectors[k * width + q];
+							vectors[k * width + p] = c * vkp - s * vkq;
+							vectors[k * width + q] = s * vkp + c * vkq;
+						}
+					}
+				}
+			}
+		}
+
+		//sort the eigenvalues, largest first, along with their vectors
+		Integer[] order = new Integer[width];
+		final double[] values = new double[width];
+		for(int i = 0; i < width; i++){
+			order[i] = i;
+			values[i] = matrix[i * width + i];
+		}
+		Arrays.sort(order, new Comparator<Integer>(){
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(values[b], values[a]);
+			}
+		});
+		double[] sorted = new double[width];
+		for(int i = 0; i < width; i++){
+			sorted[i] = values[order[i]];
+			for(int k = 0; k < width; k++){
+				eigenvectors[k * width + i] = vectors[k * width + order[i]];
+			}
+		}
+		return sorted;
+	}
+
+	/**
+	 * A piece of work done on a range of rows. partial is scratch space kept by
+	 * each thread from one range to the next.
+	 */
+	private interface RowRange {
+		void run(int start, int end, double[] partial);
+	}
+
+	/**
+	 * Shares the rows out between the threads a few at a time, running the work on
+	 * each range. Every thread is given its own array of partialSize values and these
+	 * are returned once all the rows are done. If the work fails on any range its
+	 * exception is thrown, as the results would be missing those rows.
+	 *
+	 * @param rows
+	 * @param partialSize
+	 * @param range
+	 * @return
+	 */
+	private List<double[]> forRows(int rows, final int partialSize, final RowRange range) {
+		List<PartialWorker> workers = ParallelRows.forRows(threadCount, 0, rows, ROW_STEP, new ParallelRows.WorkerFactory<PartialWorker>(){
+			@Override
+			public PartialWorker create() {
+				return new PartialWorker(range, new double[partialSize]);
+			}
+		});
+		List<double[]> partials = new ArrayList<double[]>();
+		for(PartialWorker worker : workers){
+			partials.add(worker.partial);
+		}
+		return partials;
+	}
+
+	/**
+	 * Runs a piece of work on each range of rows given to one thread, along with
+	 * that thread's scratch space.
+	 */
+	private static class PartialWorker implements ParallelRows.Worker {
+		private final RowRange range;
+		private final double[] partial;
+
+		PartialWorker(RowRange work, double[] scratch){
+			range = work;
+			partial = scratch;
+		}
+
+		@Override
+		public void run(int start, int end) {
+			range.run(start, end, partial);
+		}
+	}
+
+	/**
+	 * Writes the vectors of every row to a file, the first line gives the number
+	 * of rows and dimensions and each following line is the vector of a row.
+	 *
+	 * @param vectors
+	 * @param dimensions
+	 * @param fname
+	 */
+	public static void writeVectors(float[] vectors, int dimensions, String fname) {
+		try{
+			BufferedWriter vectorWriter = new BufferedWriter(new FileWriter(fname));
+			int rows = dimensions == 0 ? 0 : vectors.length / dimensions;
+			vectorWriter.write(rows + " " + dimensions + "\n");
+			for(int row = 0; row < rows; row++){
+				for(int i = 0; i < dimensions; i++){
+					vectorWriter.write(vectors[row * dimensions + i] + " ");
+				}
+				vectorWriter.write("\n");
+			}
+			vectorWriter.close();
+		}
+		catch(IOException e){
+			LOGGER.warning(e.getMessage());
+		}
+	}
+
+	/**
+	 * Copies the labels of the rows to a new file.
+	 *
+	 * @param fname
+	 * @param outName
+	 */
+	private static void copyLabels(String fname, String outName) {
+		try{
+			BufferedReader labelReader = new BufferedReader(new FileReader(fname));
+			BufferedWriter labelWriter = new BufferedWriter(new FileWriter(outName));
+			for ( ; ; ) {
+				String line = labelReader.readLine();
+
+				if (line == null) {
+					labelReader.close();
+					labelWriter.close();
+					break;
+				}
+				else {
+					labelWriter.write(line + "\n");
+				}
+			}
+		}
+		catch(IOException e){
+			LOGGER.warning(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,399 @@
+package ca.uottawa.gents.relatedness;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+import ca.uottawa.gents.matrix.ParallelRows;
+
+/**
+ * This class builds a thesaurus of the closest words to every word in a matrix and
+ * writes it to a binary neighbour file that LoadForRelatedness can map into memory
+ * with loadNeighbours. The lists are the same as those found by getClosestWords.
+ *
+ * Rather than finding the closest words to each word in turn the rows are gone
+ * through in blocks. Each row is only scored against the rows after it, using the
+ * column index of LoadForRelatedness, and every similarity found is offered to the
+ * lists of both rows, so each pair of words is only scored once. Once a block is
+ * finished the lists of all its rows are complete, they are written to the file and
+ * dropped. The rows of a block are shared out between several threads.
+ *
+ * Only the lists of the current block and of later rows that have already been offered
+ * a similarity are held in memory. A later row's list is made when it is first offered
+ * one and grows as it is offered more, up to the number of neighbours, so rows that
+ * share no column with a finished row take no room.
+ *
+ * To Run Program:
+ * java BuildThesaurus <rlabel file> <matrix_crs.mat file> <output file> <number of neighbours> [column weights file]
+ *
+ * Every so often a checkpoint holding the lists of later rows that have been offered
+ * similarities is saved next to the output file. If the program is stopped, running it again with the same arguments
+ * carries on from the last checkpoint. The checkpoint is removed once all rows are done.
+ *
+ * The neighbour file starts with the number of rows and the number of neighbours of
+ * each row, as two ints. Then for each row in order it holds that many pairs of the
+ * neighbour's row, an int, and its similarity, a float, best first. Missing neighbours
+ * have a row of -1 and a similarity of 0. As every row takes the same space the list
+ * of any row can be found without reading the others.
+ *
+ * @author akennedy
+ *
+ */
+public class BuildThesaurus {
+	private static final Logger LOGGER = Logger.getLogger(BuildThesaurus.class.getName());
+
+	//bytes taken by the start of the neighbour file and by each neighbour
+	static final int HEADER_BYTES = 8;
+	static final int ENTRY_BYTES = 8;
+
+	//rows finished together and the number each thread takes at a time
+	private static final int ROW_BLOCK = 4096;
+	private static final int ROW_STEP = 16;
+	//start of a checkpoint file, "GTC2"
+	private static final int CHECKPOINT_MAGIC = 0x47544332;
+
+	private final LoadForRelatedness loader;
+	private final int neighbourCount;
+	private int threadCount = Runtime.getRuntime().availableProcessors();
+	private long checkpointInterval = 10 * 60 * 1000;
+
+	/**
+	 * The main method loads the matrix and writes the neighbour file.
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if(args.length < 4){
+			LOGGER.info("To Run Program: java BuildThesaurus <rlabel file> <matrix_crs.mat file> <output file> <number of neighbours> [column weights file]");
+		}
+		else{
+			LoadForRelatedness loader;
+			if(args.length > 4){
+				loader = new LoadForRelatedness(args[0], args[1], args[4]);
+			}
+			else{
+				loader = new LoadForRelatedness(args[0], args[1]);
+			}
+			BuildThesaurus thesaurus = new BuildThesaurus(loader, Integer.parseInt(args[3]));
+			thesaurus.writeNeighbours(args[2]);
+		}
+	}
+
+	/**
+	 * Constructor takes the loaded matrix and the number of neighbours to
+	 * find for each word.
+	 *
+	 * @param relatedness
+	 * @param neighbours
+	 */
+	public BuildThesaurus(LoadForRelatedness relatedness, int neighbours){
+		loader = relatedness;
+		neighbourCount = neighbours;
+	}
+
+	/**
+	 * Sets the number of threads scoring rows, by default one for each
+	 * available processor. There must be at least one.
+	 *
+	 * @param threads
+	 */
+	public void setThreadCount(int threads) {
+		if(threads < 1){
+			throw new IllegalArgumentException("Thread count must be at least 1: " + threads);
+		}
+		threadCount = threads;
+	}
+
+	/**
+	 * Sets the least time in milliseconds between two checkpoints, by default
+	 * ten minutes.
+	 *
+	 * @param millis
+	 */
+	public void setCheckpointInterval(long millis) {
+		checkpointInterval = millis;
+	}
+
+	/**
+	 * Finds the closest words to every word and writes them to the neighbour file.
+	 * If a checkpoint of an earlier run is found the rows it had finished are not
+	 * done again.
+	 *
+	 * @param fname
+	 */
+	public void writeNeighbours(String fname) {
+		int rows = loader.getRowCount();
+		String checkpointFile = fname + ".checkpoint";
+		AtomicReferenceArray<ScoreHeap> heaps = new AtomicReferenceArray<ScoreHeap>(rows);
+		int start = readCheckpoint(checkpointFile, heaps);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try{
+			RandomAccessFile neighbourFile = new RandomAccessFile(fname, "rw");
+			if(start == 0){
+				neighbourFile.setLength(0);
+				neighbourFile.writeInt(rows);
+				neighbourFile.writeInt(neighbourCount);
+			}
+			FileChannel channel = neighbourFile.getChannel();
+			long lastCheckpoint = System.currentTimeMillis();
+			for(int blockStart = start; blockStart < rows; blockStart += ROW_BLOCK){
+				int blockEnd = Math.min(blockStart + ROW_BLOCK, rows);
+				scoreBlock(executor, blockStart, blockEnd, heaps);
+				writeBlock(channel, blockStart, blockEnd, heaps);
+				LOGGER.info("Rows done: " + blockEnd);
+
+				if(blockEnd < rows && System.currentTimeMillis() - lastCheckpoint >= checkpointInterval){
+					channel.force(false);
+					writeCheckpoint(checkpointFile, blockEnd, heaps);
+					lastCheckpoint = System.currentTimeMillis();
+				}
+			}
+			channel.force(false);
+			neighbourFile.close();
+			new File(checkpointFile).delete();
+		}
+		catch(IOException e){
+			LOGGER.warning(e.getMessage());
+		}
+		finally{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Scores every row from start up to end against all the rows after it, offering
+	 * each similarity to the lists of both rows. The rows are shared out between the
+	 * threads a few at a time. When this returns the lists of these rows are complete,
+	 * if a thread fails its exception is thrown so that no unfinished lists are written
+	 * and the checkpoint is kept.
+	 *
+	 * @param executor
+	 * @param start
+	 * @param end
+	 * @param heaps
+	 */
+	private void scoreBlock(ExecutorService executor, int start, final int end, final AtomicReferenceArray<ScoreHeap> heaps) {
+		for(int row = start; row < end; row++){
+			if(loader.getRank(row) >= 0){
+				getHeap(heaps, row);
+			}
+		}
+		ParallelRows.forRows(executor, threadCount, start, end, ROW_STEP, new ParallelRows.WorkerFactory<ParallelRows.Worker>(){
+			@Override
+			public ParallelRows.Worker create() {
+				final int[] rows = new int[loader.getRowCount()];
+				final float[] similarities = new float[loader.getRowCount()];
+				return new ParallelRows.Worker(){
+					@Override
+					public void run(int first, int last) {
+						for(int row = first; row < last; row++){
+							if(loader.getRank(row) >= 0){
+								scoreRow(row, rows, similarities, heaps);
+							}
+						}
+					}
+				};
+			}
+		});
+	}
+
+	/**
+	 * Scores one row against the rows after it and adds each pair to the lists of
+	 * both rows. The lists can be added to by several threads so each is locked
+	 * while it is changed.
+	 *
+	 * @param row
+	 * @param rows
+	 * @param similarities
+	 * @param heaps
+	 */
+	private void scoreRow(int row, int[] rows, float[] similarities, AtomicReferenceArray<ScoreHeap> heaps) {
+		int count = loader.scoreLaterRows(row, rows, similarities);
+		int rank = loader.getRank(row);
+		ScoreHeap rowHeap = heaps.get(row);
+		synchronized(rowHeap){
+			for(int i = 0; i < count; i++){
+				rowHeap.add(loader.getRank(rows[i]), similarities[i]);
+			}
+		}
+		for(int i = 0; i < count; i++){
+			ScoreHeap heap = getHeap(heaps, rows[i]);
+			synchronized(heap){
+				heap.add(rank, similarities[i]);
+			}
+		}
+	}
+
+	/**
+	 * Gets the list of a row, making it if the row does not have one yet. When
+	 * two threads make the list of a row at once only one of them is kept.
+	 *
+	 * @param heaps
+	 * @param row
+	 * @return
+	 */
+	private ScoreHeap getHeap(AtomicReferenceArray<ScoreHeap> heaps, int row) {
+		ScoreHeap toReturn = heaps.get(row);
+		if(toReturn == null){
+			heaps.compareAndSet(row, null, new ScoreHeap(neighbourCount));
+			toReturn = heaps.get(row);
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Writes the finished lists of the rows from start up to end to their place in
+	 * the neighbour file. The lists are then dropped to free their memory.
+	 *
+	 * @param channel
+	 * @param start
+	 * @param end
+	 * @param heaps
+	 * @throws IOException
+	 */
+	private void writeBlock(FileChannel channel, int start, int end, AtomicReferenceArray<ScoreHeap> heaps) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((end - start) * neighbourCount * ENTRY_BYTES);
+		for(int row = start; row < end; row++){
+			ScoreHeap heap = heaps.get(row);
+			int size = 0;
+			if(heap != null){
+				heap.sort();
+				size = heap.getSize();
+				for(int i = 0; i < size; i++){
+					buffer.putInt(loader.getRankedRow(heap.getKey(i)));
+					buffer.putFloat(heap.getScore(i));
+				}
+			}
+			for(int i = size; i < neighbourCount; i++){
+				buffer.putInt(-1);
+				buffer.putFloat(0);
+			}
+			heaps.set(row, null);
+		}
+		buffer.flip();
+		long position = HEADER_BYTES + (long)start * neighbourCount * ENTRY_BYTES;
+		while(buffer.hasRemaining()){
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Saves the number of rows finished and the lists of the later rows that have
+	 * been offered similarities, each with its row. The checkpoint is written to a
+	 * new file which then replaces the old one, so a checkpoint is never left half
+	 * written.
+	 *
+	 * @param fname
+	 * @param done
+	 * @param heaps
+	 * @throws IOException
+	 */
+	private void writeCheckpoint(String fname, int done, AtomicReferenceArray<ScoreHeap> heaps) throws IOException {
+		int pending = 0;
+		for(int row = done; row < heaps.length(); row++){
+			if(heaps.get(row) != null){
+				pending++;
+			}
+		}
+		File temporary = new File(fname + ".tmp");
+		DataOutputStream checkpointWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+		try{
+			checkpointWriter.writeInt(CHECKPOINT_MAGIC);
+			checkpointWriter.writeInt(heaps.length());
+			checkpointWriter.writeInt(neighbourCount);
+			checkpointWriter.writeInt(done);
+			checkpointWriter.writeInt(pending);
+			for(int row = done; row < heaps.length(); row++){
+				ScoreHeap heap = heaps.get(row);
+				if(heap != null){
+					checkpointWriter.writeInt(row);
+					checkpointWriter.writeInt(heap.getSize());
+					for(int i = 0; i < heap.getSize(); i++){
+						checkpointWriter.writeInt(heap.getKey(i));
+						checkpointWriter.writeFloat(heap.getScore(i));
+					}
+				}
+			}
+		}
+		finally{
+			checkpointWriter.close();
+		}
+
+		File checkpoint = new File(fname);
+		checkpoint.delete();
+		if(!temporary.renameTo(checkpoint)){
+			LOGGER.warning("Could not replace checkpoint " + fname);
+		}
+		LOGGER.info("Checkpoint at row " + done + " with " + pending + " unfinished lists");
+	}
+
+	/**
+	 * Reads a checkpoint if there is one, placing the unfinished lists in heaps,
+	 * and returns the number of rows that were finished. If there is no checkpoint
+	 * or it was made for a different matrix 0 is returned.
+	 *
+	 * @param fname
+	 * @param heaps
+	 * @return
+	 */
+	private int readCheckpoint(String fname, AtomicReferenceArray<ScoreHeap> heaps) {
+		int done = 0;
+		if(new File(fname).exists()){
+			try{
+				DataInputStream checkpointReader = new DataInputStream(new BufferedInputStream(new FileInputStream(fname)));
+				try{
+					int magic = checkpointReader.readInt();
+					int rows = checkpointReader.readInt();
+					int neighbours = checkpointReader.readInt();
+					if(magic != CHECKPOINT_MAGIC || rows != heaps.length() || neighbours != neighbourCount){
+						LOGGER.warning("Checkpoint does not match, starting again");
+					}
+					else{
+						done = checkpointReader.readInt();
+						int pending = checkpointReader.readInt();
+						if(done < 0 || done > rows){
+							throw new IOException("Bad row count in checkpoint " + fname);
+						}
+						for(int list = 0; list < pending; list++){
+							int row = checkpointReader.readInt();
+							int size = checkpointReader.readInt();
+							if(row < done || row >= rows || size < 0 || size > neighbourCount){
+								throw new IOException("Bad list in checkpoint " + fname);
+							}
+							ScoreHeap heap = new ScoreHeap(neighbourCount);
+							for(int i = 0; i < size; i++){
+								heap.add(checkpointReader.readInt(), checkpointReader.readFloat());
+							}
+							heaps.set(row, heap);
+						}
+						LOGGER.info("Carrying on from row " + done);
+					}
+				}
+				finally{
+					checkpointReader.close();
+				}
+			}
+			catch(IOException e){
+				LOGGER.warning(e.getMessage());
+				for(int row = 0; row < heaps.length(); row++){
+					heaps.set(row, null);
+				}
+				done = 0;
+			}
+		}
+		return done;
+	}
+}
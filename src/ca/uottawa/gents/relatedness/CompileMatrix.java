@@ -0,0 +1,37 @@
+package ca.uottawa.gents.relatedness;
+
+import java.util.logging.Logger;
+
+/**
+ * This class compiles a matrix into a binary matrix file that LoadForRelatedness can map 
+ * into memory rather than parse. The rows, the column index, the magnitude of every row
+ * and the sorted labels are all saved, so a program using the file starts straight away
+ * and several programs on one machine share a single copy of it.
+ * 
+ * To Run Program:
+ * java CompileMatrix <rlabel file> <matrix file> <output file>
+ * 
+ * The matrix file can be a sparse matrix such as matrix_crs.mat or a file of dense vectors.
+ * The output file is then loaded with: new LoadForRelatedness(outputFile)
+ * 
+ * @author akennedy
+ *
+ */
+public class CompileMatrix {
+	private static final Logger LOGGER = Logger.getLogger(CompileMatrix.class.getName());
+
+	/**
+	 * The main method loads the matrix and writes the binary matrix file.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if(args.length < 3){
+			LOGGER.info("To Run Program: java CompileMatrix <rlabel file> <matrix file> <output file>");
+		}
+		else{
+			LoadForRelatedness loader = new LoadForRelatedness(args[0], args[1]);
+			loader.writeMatrixFile(args[2]);
+		}
+	}
+}
@@ -0,0 +1,962 @@
+package ca.uottawa.gents.relatedness;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import ca.uottawa.gents.matrix.ParallelRows;
+import ca.uottawa.gents.matrix.RandomBits;
+
+/**
+ * This class finds approximate closest words with a hierarchical navigable small world
+ * graph, see:
+ * Yu. A. Malkov, D. A. Yashunin (2020). "Efficient and Robust Approximate Nearest Neighbor
+ * Search Using Hierarchical Navigable Small World Graphs". IEEE Transactions on Pattern
+ * Analysis and Machine Intelligence 42(4).
+ *
+ * Every word is a node linked to a few of its closest words. Each node is also given a
+ * random level and the nodes of each level above 0 make a smaller graph of their own, with
+ * few nodes on the top level. A search starts at the top, walks greedily towards the word
+ * on each level and then searches the bottom level keeping the ef best nodes seen. Only a
+ * few hundred words are measured for each search, whatever the size of the vocabulary.
+ *
+ * It is meant for dense vectors, such as those from ReduceMatrix or random indexing, but
+ * works with any matrix loaded by LoadForRelatedness. Similarity is the cosine found by the
+ * loader, which for dense vectors is the dot product of the normalized vectors without a
+ * second normalized copy being held. The nodes are added by several threads at once, each
+ * list of links being locked while it is changed.
+ *
+ * The graph can be written to a file and mapped back into memory by load, so it is not
+ * built again and is shared between programs using the same file. The file starts with
+ * "GTH1", the version, the number of rows, the dimensions of dense vectors or 0, the number
+ * of entries, the most links of a node above level 0, the entry node and the top level, as
+ * eight ints, and then a checksum of the magnitudes of the rows as a long. The sizes and the
+ * checksum must match the matrix the index is loaded with. Then come rows+1 ints giving where the upper levels of each node start, the
+ * links of every node on level 0 and the links of the upper levels. Each list of links is
+ * its length followed by room for the most links allowed, twice as many on level 0. Each
+ * of the three parts is mapped on its own and can be at most 2GB. The links of level 0 take
+ * rows * (2 * links + 1) ints, so with 16 links an index holds up to about 16 million words,
+ * larger graphs are refused when they are built.
+ *
+ * Once built the index is used by getClosestWords of the loader after useGraphIndex is called.
+ *
+ * To build or load an index and evaluate its recall against the exact closest words:
+ * java HnswIndex <rlabel file> <matrix file> <index file> <links> <ef construction> <number of test words> <number of neighbours> [ef]
+ *
+ * @author akennedy
+ *
+ */
+public class HnswIndex {
+	private static final Logger LOGGER = Logger.getLogger(HnswIndex.class.getName());
+
+	//start of an index file, "GTH1", its version and the bytes taken by its header
+	private static final int INDEX_MAGIC = 0x47544831;
+	private static final int INDEX_VERSION = 1;
+	private static final int HEADER_BYTES = 40;
+	//number of locks shared between the nodes while building
+	private static final int LOCK_STRIPES = 1024;
+	//highest level a node can be given
+	private static final int MAX_LEVEL = 30;
+	//most ints in one part of the index, each part is mapped on its own and a mapping can be at most 2GB
+	private static final long MAX_PART_INTS = Integer.MAX_VALUE / 4;
+
+	private final LoadForRelatedness loader;
+	private final int rowCount;
+	//the most links of a node above level 0, and on level 0
+	private final int maxLinks;
+	private final int maxBottomLinks;
+	//where the upper levels of each node start, and the lists of links of each level
+	private final IntBuffer upperOffsets;
+	private final IntBuffer bottomLinks;
+	private final IntBuffer upperLinks;
+	private volatile int entryPoint;
+	private volatile int topLevel;
+	//number of best nodes kept when searching
+	private int ef = 64;
+	//locks on the lists of links, null once the graph is built
+	private Object[] locks;
+
+	// the rows visited by each thread's search, reused from one search to the next.
+	private final ThreadLocal<VisitedRows> visitedRows = new ThreadLocal<VisitedRows>(){
+		@Override
+		protected VisitedRows initialValue(){
+			return new VisitedRows(rowCount);
+		}
+	};
+
+	/**
+	 * The main method loads the matrix, builds the index if the index file does not
+	 * exist and maps it otherwise, and compares it with the exact closest words.
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if(args.length < 7){
+			LOGGER.info("To Run Program: java HnswIndex <rlabel file> <matrix file> <index file> <links> <ef construction> <number of test words> <number of neighbours> [ef]");
+		}
+		else{
+			LoadForRelatedness loader = new LoadForRelatedness(args[0], args[1]);
+			HnswIndex index;
+			if(new File(args[2]).exists()){
+				index = load(loader, args[2]);
+			}
+			else{
+				index = new HnswIndex(loader, Integer.parseInt(args[3]), Integer.parseInt(args[4]), 1);
+				index.write(args[2]);
+			}
+			if(index == null){
+				LOGGER.warning("Could not load the index from " + args[2]);
+			}
+			else{
+				if(args.length > 7){
+					index.setEf(Integer.parseInt(args[7]));
+				}
+				index.evaluate(Integer.parseInt(args[5]), Integer.parseInt(args[6]));
+			}
+		}
+	}
+
+	/**
+	 * Constructor builds the index using one thread for each available processor.
+	 * links is the most links of a node above level 0, twice as many are kept on
+	 * level 0, and efConstruction is the number of best nodes kept while finding
+	 * the links of a new node. The seed picks the level of each node. Both links
+	 * and efConstruction must be at least 1.
+	 *
+	 * @param relatedness
+	 * @param links
+	 * @param efConstruction
+	 * @param randomSeed
+	 */
+	public HnswIndex(LoadForRelatedness relatedness, int links, int efConstruction, long randomSeed){
+		this(relatedness, links, efConstruction, randomSeed, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructor builds the index, adding the nodes with the given number of threads.
+	 *
+	 * @param relatedness
+	 * @param links
+	 * @param efConstruction
+	 * @param randomSeed
+	 * @param threads
+	 */
+	public HnswIndex(LoadForRelatedness relatedness, int links, int efConstruction, long randomSeed, int threads){
+		if(links < 1){
+			throw new IllegalArgumentException("Links must be at least 1: " + links);
+		}
+		if(efConstruction < 1){
+			throw new IllegalArgumentException("ef construction must be at least 1: " + efConstruction);
+		}
+		loader = relatedness;
+		rowCount = loader.getRowCount();
+		maxLinks = links;
+		maxBottomLinks = links * 2;
+
+		//the levels are picked first so that the space for every list of links can be laid out
+		double levelFactor = 1 / Math.log(Math.max(links, 2));
+		int bottomSize = checkPartSize((long)rowCount * (maxBottomLinks + 1), "level 0");
+		int[] offsets = new int[rowCount+1];
+		for(int row = 0; row < rowCount; row++){
+			int level = 0;
+			if(isIndexed(row)){
+				double uniform = ((RandomBits.mix(randomSeed + row * RandomBits.GOLDEN_GAMMA) >>> 11) + 1) / 9007199254740993.0;
+				level = Math.min((int)(-Math.log(uniform) * levelFactor), MAX_LEVEL);
+			}
+			offsets[row+1] = checkPartSize(offsets[row] + (long)level * (maxLinks + 1), "the upper levels");
+		}
+		upperOffsets = IntBuffer.wrap(offsets);
+		bottomLinks = IntBuffer.wrap(new int[bottomSize]);
+		upperLinks = IntBuffer.wrap(new int[offsets[rowCount]]);
+		entryPoint = -1;
+		topLevel = -1;
+		locks = new Object[LOCK_STRIPES];
+		for(int i = 0; i < locks.length; i++){
+			locks[i] = new Object();
+		}
+
+		long start = System.currentTimeMillis();
+		addNodes(efConstruction, threads);
+		locks = null;
+		LOGGER.info("Built graph of " + rowCount + " rows with " + (topLevel + 1) + " levels in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Constructor for an index mapped from a file.
+	 *
+	 * @param relatedness
+	 * @param links
+	 * @param entry
+	 * @param level
+	 * @param offsets
+	 * @param bottom
+	 * @param upper
+	 */
+	private HnswIndex(LoadForRelatedness relatedness, int links, int entry, int level, IntBuffer offsets, IntBuffer bottom, IntBuffer upper){
+		loader = relatedness;
+		rowCount = loader.getRowCount();
+		maxLinks = links;
+		maxBottomLinks = links * 2;
+		entryPoint = entry;
+		topLevel = level;
+		upperOffsets = offsets;
+		bottomLinks = bottom;
+		upperLinks = upper;
+	}
+
+	/**
+	 * Maps an index file written by write into memory. The file must have been made
+	 * from the same matrix, its sizes and the checksum of its row magnitudes are 
+	 * checked against those of the loader. If it cannot be read or was made from
+	 * another matrix null is returned.
+	 *
+	 * @param relatedness
+	 * @param fname
+	 * @return
+	 */
+	public static HnswIndex load(LoadForRelatedness relatedness, String fname) {
+		HnswIndex index = null;
+		RandomAccessFile indexFile = null;
+		try{
+			indexFile = new RandomAccessFile(fname, "r");
+			int magic = indexFile.readInt();
+			int version = indexFile.readInt();
+			int rows = indexFile.readInt();
+			int dimensions = indexFile.readInt();
+			int entries = indexFile.readInt();
+			int links = indexFile.readInt();
+			int entry = indexFile.readInt();
+			int level = indexFile.readInt();
+			long checksum = indexFile.readLong();
+			if(magic != INDEX_MAGIC){
+				LOGGER.warning(fname + " is not an index file");
+			}
+			else if(version != INDEX_VERSION){
+				LOGGER.warning(fname + " is version " + version + " of the index file, only version " + INDEX_VERSION + " can be read");
+			}
+			else if(rows != relatedness.getRowCount() || dimensions != relatedness.getDimensions() || entries != relatedness.getEntryCount()){
+				LOGGER.warning("Index file is for " + rows + " rows, " + dimensions + " dimensions and " + entries + " entries, the matrix has " 
+						+ relatedness.getRowCount() + ", " + relatedness.getDimensions() + " and " + relatedness.getEntryCount());
+			}
+			else if(checksum != getChecksum(relatedness)){
+				LOGGER.warning("Index file was made from a matrix with other values or column weights");
+			}
+			else if(links < 1){
+				LOGGER.warning("Index file has " + links + " links");
+			}
+			else{
+				//each part is mapped on its own, the positions in the file can be past 2GB
+				FileChannel channel = indexFile.getChannel();
+				long position = HEADER_BYTES;
+				IntBuffer offsets = map(channel, position, rows + 1);
+				position += (rows + 1) * 4L;
+				int bottomSize = checkPartSize((long)rows * (links * 2 + 1), "level 0");
+				IntBuffer bottom = map(channel, position, bottomSize);
+				position += bottomSize * 4L;
+				IntBuffer upper = map(channel, position, offsets.get(rows));
+				index = new HnswIndex(relatedness, links, entry, level, offsets, bottom, upper);
+				LOGGER.info("Mapped graph of " + rows + " rows with " + (level + 1) + " levels");
+			}
+		}
+		catch(Exception e){
+			LOGGER.warning(e.getMessage());
+		}
+		finally{
+			//the mappings stay valid once the file is closed
+			if(indexFile != null){
+				try{
+					indexFile.close();
+				}
+				catch(IOException e){
+					LOGGER.warning(e.getMessage());
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Maps a run of ints from a file, starting at a position in bytes.
+	 *
+	 * @param channel
+	 * @param position
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	private static IntBuffer map(FileChannel channel, long position, int length) throws IOException {
+		if(position + length * 4L > channel.size()){
+			throw new IOException("Index file is too short, it ends at " + channel.size() + " bytes before " + (position + length * 4L));
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, length * 4L).asIntBuffer();
+	}
+
+	/**
+	 * Finds a checksum of the magnitudes of all the rows of a matrix, with its column
+	 * weights, so that an index is not used with a matrix of the same size but other
+	 * values.
+	 *
+	 * @param relatedness
+	 * @return
+	 */
+	private static long getChecksum(LoadForRelatedness relatedness) {
+		long toReturn = relatedness.getRowCount();
+		for(int row = 0; row < relatedness.getRowCount(); row++){
+			toReturn = RandomBits.mix(toReturn + Float.floatToIntBits(relatedness.getMagnitude(row)));
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Checks that a part of the index of the given number of ints can be held and
+	 * mapped, failing with a message naming the part if it cannot.
+	 *
+	 * @param size
+	 * @param part
+	 * @return
+	 */
+	private static int checkPartSize(long size, String part) {
+		if(size > MAX_PART_INTS){
+			throw new IllegalArgumentException("The links of " + part + " need " + size + " ints, more than the " + MAX_PART_INTS + " that can be mapped");
+		}
+		return (int)size;
+	}
+
+	/**
+	 * Writes the index to a file that can be mapped by load.
+	 *
+	 * @param fname
+	 */
+	public void write(String fname) {
+		try{
+			DataOutputStream indexWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname)));
+			indexWriter.writeInt(INDEX_MAGIC);
+			indexWriter.writeInt(INDEX_VERSION);
+			indexWriter.writeInt(rowCount);
+			indexWriter.writeInt(loader.getDimensions());
+			indexWriter.writeInt(loader.getEntryCount());
+			indexWriter.writeInt(maxLinks);
+			indexWriter.writeInt(entryPoint);
+			indexWriter.writeInt(topLevel);
+			indexWriter.writeLong(getChecksum(loader));
+			for(int i = 0; i <= rowCount; i++){
+				indexWriter.writeInt(upperOffsets.get(i));
+			}
+			for(int i = 0; i < bottomLinks.capacity(); i++){
+				indexWriter.writeInt(bottomLinks.get(i));
+			}
+			for(int i = 0; i < upperLinks.capacity(); i++){
+				indexWriter.writeInt(upperLinks.get(i));
+			}
+			indexWriter.close();
+		}
+		catch(IOException e){
+			LOGGER.warning(e.getMessage());
+		}
+	}
+
+	/**
+	 * Sets the number of best nodes kept when searching, by default 64. A larger
+	 * ef finds more of the true closest words but measures more words. At least
+	 * one more than the number of words asked for is always kept. It must be at
+	 * least 1.
+	 *
+	 * @param size
+	 */
+	public void setEf(int size) {
+		if(size < 1){
+			throw new IllegalArgumentException("ef must be at least 1: " + size);
+		}
+		ef = size;
+	}
+
+	/**
+	 * Checks whether a row is part of the graph, rows without a word or with
+	 * no values are left out.
+	 *
+	 * @param row
+	 * @return
+	 */
+	private boolean isIndexed(int row) {
+		return loader.getRank(row) >= 0 && loader.getMagnitude(row) > 0;
+	}
+
+	/**
+	 * Gets the level of a node.
+	 *
+	 * @param node
+	 * @return
+	 */
+	private int getLevel(int node) {
+		return (upperOffsets.get(node+1) - upperOffsets.get(node)) / (maxLinks + 1);
+	}
+
+	/**
+	 * Gets the lists of links of a level.
+	 *
+	 * @param level
+	 * @return
+	 */
+	private IntBuffer getLinks(int level) {
+		return level == 0 ? bottomLinks : upperLinks;
+	}
+
+	/**
+	 * Gets the position of a node's list of links on a level, which starts with
+	 * the number of links.
+	 *
+	 * @param node
+	 * @param level
+	 * @return
+	 */
+	private int getBase(int node, int level) {
+		int toReturn;
+		if(level == 0){
+			toReturn = node * (maxBottomLinks + 1);
+		}
+		else{
+			toReturn = upperOffsets.get(node) + (level - 1) * (maxLinks + 1);
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Gets the most links a node can have on a level.
+	 *
+	 * @param level
+	 * @return
+	 */
+	private int getMaxLinks(int level) {
+		return level == 0 ? maxBottomLinks : maxLinks;
+	}
+
+	/**
+	 * Copies the links of a node on a level into neighbours and returns how many
+	 * there are. While the graph is being built the list is locked as it is read.
+	 *
+	 * @param node
+	 * @param level
+	 * @param neighbours
+	 * @return
+	 */
+	private int getNeighbours(int node, int level, int[] neighbours) {
+		Object[] building = locks;
+		int count;
+		if(building != null){
+			synchronized(building[node % LOCK_STRIPES]){
+				count = copyNeighbours(node, level, neighbours);
+			}
+		}
+		else{
+			count = copyNeighbours(node, level, neighbours);
+		}
+		return count;
+	}
+
+	/**
+	 * Copies the links of a node on a level into neighbours and returns how many
+	 * there are.
+	 *
+	 * @param node
+	 * @param level
+	 * @param neighbours
+	 * @return
+	 */
+	private int copyNeighbours(int node, int level, int[] neighbours) {
+		IntBuffer links = getLinks(level);
+		int base = getBase(node, level);
+		int count = links.get(base);
+		for(int i = 0; i < count; i++){
+			neighbours[i] = links.get(base + 1 + i);
+		}
+		return count;
+	}
+
+	/**
+	 * Adds every indexed row to the graph. The first is added on its own to be
+	 * the entry node and the rest are shared out between the threads.
+	 *
+	 * @param efConstruction
+	 * @param threads
+	 */
+	private void addNodes(final int efConstruction, int threads) {
+		int first = 0;
+		while(first < rowCount && !isIndexed(first)){
+			first++;
+		}
+		if(first == rowCount){
+			return;
+		}
+		entryPoint = first;
+		topLevel = getLevel(first);
+
+		final AtomicInteger added = new AtomicInteger(1);
+		final ParallelRows.Worker worker = new ParallelRows.Worker(){
+			@Override
+			public void run(int start, int end) {
+				for(int row = start; row < end; row++){
+					if(isIndexed(row)){
+						addNode(row, efConstruction);
+						if(added.incrementAndGet() % 100000 == 0){
+							LOGGER.info("Added " + added.get() + " rows");
+						}
+					}
+				}
+			}
+		};
+		//the threads take one row at a time and share the one worker, which keeps nothing of its own
+		ParallelRows.forRows(threads, first + 1, rowCount, 1, new ParallelRows.WorkerFactory<ParallelRows.Worker>(){
+			@Override
+			public ParallelRows.Worker create() {
+				return worker;
+			}
+		});
+	}
+
+	/**
+	 * Adds one node to the graph. It walks down from the entry node to the level of
+	 * the node, then on each level from there down the best efConstruction nodes are
+	 * found, a few of them are picked as links and each of those is linked back. If
+	 * the node's level is above all others it becomes the new entry node.
+	 *
+	 * @param node
+	 * @param efConstruction
+	 */
+	private void addNode(int node, int efConstruction) {
+		int level = getLevel(node);
+		int entry;
+		int top;
+		synchronized(this){
+			entry = entryPoint;
+			top = topLevel;
+		}
+		for(int i = top; i > level; i--){
+			entry = closestOnLevel(node, entry, i);
+		}
+
+		int[] found = new int[efConstruction];
+		float[] scores = new float[efConstruction];
+		for(int i = Math.min(level, top); i >= 0; i--){
+			NodeHeap best = searchLevel(node, entry, efConstruction, i);
+			int count = sortBest(best, found, scores);
+			int[] links = pickLinks(node, found, scores, count, getMaxLinks(i));
+			setLinks(node, i, links);
+			for(int neighbour : links){
+				addLink(neighbour, node, i);
+			}
+			entry = found[0] == node && count > 1 ? found[1] : found[0];
+		}
+
+		if(level > top){
+			synchronized(this){
+				if(level > topLevel){
+					topLevel = level;
+					entryPoint = node;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Walks from the entry node to the node most similar to row on a level, moving
+	 * to a more similar neighbour for as long as there is one.
+	 *
+	 * @param row
+	 * @param entry
+	 * @param level
+	 * @return
+	 */
+	private int closestOnLevel(int row, int entry, int level) {
+		int[] neighbours = new int[maxBottomLinks];
+		int closest = entry;
+		float closestScore = loader.getSimilarity(row, entry);
+		boolean changed = true;
+		while(changed){
+			changed = false;
+			int count = getNeighbours(closest, level, neighbours);
+			for(int i = 0; i < count; i++){
+				float score = loader.getSimilarity(row, neighbours[i]);
+				if(score > closestScore){
+					closestScore = score;
+					closest = neighbours[i];
+					changed = true;
+				}
+			}
+		}
+		return closest;
+	}
+
+	/**
+	 * Searches a level starting from the entry node, keeping the size nodes most
+	 * similar to row. The closest node not yet expanded has its neighbours measured
+	 * until it is less similar than all of the nodes kept.
+	 *
+	 * @param row
+	 * @param entry
+	 * @param size
+	 * @param level
+	 * @return
+	 */
+	private NodeHeap searchLevel(int row, int entry, int size, int level) {
+		VisitedRows visited = visitedRows.get();
+		visited.clear();
+		int[] neighbours = new int[maxBottomLinks];
+		//candidates are kept with their scores negated so the most similar is on top
+		NodeHeap candidates = new NodeHeap(size * 2);
+		NodeHeap best = new NodeHeap(size + 1);
+		float entryScore = loader.getSimilarity(row, entry);
+		visited.visit(entry);
+		candidates.push(entry, -entryScore);
+		best.push(entry, entryScore);
+
+		while(candidates.getSize() > 0){
+			int candidate = candidates.getTopNode();
+			float candidateScore = -candidates.getTopScore();
+			if(best.getSize() >= size && candidateScore < best.getTopScore()){
+				break;
+			}
+			candidates.pop();
+			int count = getNeighbours(candidate, level, neighbours);
+			for(int i = 0; i < count; i++){
+				int neighbour = neighbours[i];
+				if(visited.visit(neighbour)){
+					float score = loader.getSimilarity(row, neighbour);
+					if(best.getSize() < size || score > best.getTopScore()){
+						candidates.push(neighbour, -score);
+						best.push(neighbour, score);
+						if(best.getSize() > size){
+							best.pop();
+						}
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Empties a heap of the best nodes into found and scores, most similar first,
+	 * and returns how many there were.
+	 *
+	 * @param best
+	 * @param found
+	 * @param scores
+	 * @return
+	 */
+	private static int sortBest(NodeHeap best, int[] found, float[] scores) {
+		int count = best.getSize();
+		for(int i = count-1; i >= 0; i--){
+			found[i] = best.getTopNode();
+			scores[i] = best.getTopScore();
+			best.pop();
+		}
+		return count;
+	}
+
+	/**
+	 * Picks at most max links for a node from candidates sorted most similar first.
+	 * A candidate is only picked if it is more similar to the node than to any
+	 * candidate already picked, which spreads the links out in different directions.
+	 *
+	 * @param node
+	 * @param candidates
+	 * @param scores
+	 * @param count
+	 * @param max
+	 * @return
+	 */
+	private int[] pickLinks(int node, int[] candidates, float[] scores, int count, int max) {
+		int[] picked = new int[max];
+		int pickedCount = 0;
+		for(int i = 0; i < count && pickedCount < max; i++){
+			int candidate = candidates[i];
+			if(candidate != node){
+				boolean keep = true;
+				for(int j = 0; j < pickedCount && keep; j++){
+					keep = loader.getSimilarity(candidate, picked[j]) <= scores[i];
+				}
+				if(keep){
+					picked[pickedCount] = candidate;
+					pickedCount++;
+				}
+			}
+		}
+		return Arrays.copyOf(picked, pickedCount);
+	}
+
+	/**
+	 * Sets the links of a node on a level.
+	 *
+	 * @param node
+	 * @param level
+	 * @param links
+	 */
+	private void setLinks(int node, int level, int[] links) {
+		synchronized(locks[node % LOCK_STRIPES]){
+			writeLinks(node, level, links, links.length);
+		}
+	}
+
+	/**
+	 * Writes the first count links of a node on a level.
+	 *
+	 * @param node
+	 * @param level
+	 * @param links
+	 * @param count
+	 */
+	private void writeLinks(int node, int level, int[] links, int count) {
+		IntBuffer buffer = getLinks(level);
+		int base = getBase(node, level);
+		for(int i = 0; i < count; i++){
+			buffer.put(base + 1 + i, links[i]);
+		}
+		buffer.put(base, count);
+	}
+
+	/**
+	 * Links a node to a new neighbour on a level. If the node already has as many
+	 * links as it can the new neighbour and the old links are picked from again.
+	 *
+	 * @param node
+	 * @param neighbour
+	 * @param level
+	 */
+	private void addLink(int node, int neighbour, int level) {
+		int max = getMaxLinks(level);
+		synchronized(locks[node % LOCK_STRIPES]){
+			int[] links = new int[max + 1];
+			int count = copyNeighbours(node, level, links);
+			links[count] = neighbour;
+			count++;
+			if(count <= max){
+				writeLinks(node, level, links, count);
+			}
+			else{
+				float[] scores = new float[count];
+				for(int i = 0; i < count; i++){
+					scores[i] = loader.getSimilarity(node, links[i]);
+				}
+				//sort the links most similar first
+				for(int i = 1; i < count; i++){
+					int link = links[i];
+					float score = scores[i];
+					int j = i - 1;
+					for( ; j >= 0 && scores[j] < score; j--){
+						links[j+1] = links[j];
+						scores[j+1] = scores[j];
+					}
+					links[j+1] = link;
+					scores[j+1] = score;
+				}
+				int[] picked = pickLinks(node, links, scores, count, max);
+				writeLinks(node, level, picked, picked.length);
+			}
+		}
+	}
+
+	/**
+	 * Finds the approximate closest words to a word in the same form as
+	 * LoadForRelatedness.getClosestWords. If the word is not found null is returned.
+	 *
+	 * @param word
+	 * @param topX
+	 * @return
+	 */
+	public WordDist[] getClosestWords(String word, int topX){
+		WordDist[] toReturn = null;
+		int id1 = loader.getRowId(word);
+		if(id1 >= 0){
+			toReturn = getClosestWords(id1, topX);
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Finds the approximate closest words to a row. The graph is walked down to level
+	 * 0 and the best of at least ef nodes are returned, leaving out the row itself.
+	 *
+	 * @param id1
+	 * @param topX
+	 * @return
+	 */
+	WordDist[] getClosestWords(int id1, int topX){
+		ScoreHeap heap = new ScoreHeap(topX);
+		int entry = entryPoint;
+		if(entry >= 0 && loader.getMagnitude(id1) > 0){
+			for(int i = topLevel; i > 0; i--){
+				entry = closestOnLevel(id1, entry, i);
+			}
+			NodeHeap best = searchLevel(id1, entry, Math.max(ef, topX + 1), 0);
+			while(best.getSize() > 0){
+				int node = best.getTopNode();
+				if(node != id1){
+					heap.add(loader.getRank(node), best.getTopScore());
+				}
+				best.pop();
+			}
+		}
+		return loader.getWordDists(heap, topX);
+	}
+
+	/**
+	 * Compares the approximate closest words with the exact ones from LoadForRelatedness
+	 * for a number of test words spread evenly through the matrix. The recall, the share
+	 * of the exact closest words that are also found by the index, is logged along with
+	 * the time taken by each. The recall is returned.
+	 *
+	 * @param testWords
+	 * @param topX
+	 * @return
+	 */
+	public double evaluate(int testWords, int topX) {
+		int words = 0;
+		for(int row = 0; row < rowCount; row++){
+			if(loader.getRank(row) >= 0){
+				words++;
+			}
+		}
+		int step = Math.max(1, words / Math.max(testWords, 1));
+
+		long exactTime = 0;
+		long approximateTime = 0;
+		long found = 0;
+		long total = 0;
+		int tested = 0;
+		for(int rank = 0; rank < words && tested < testWords; rank += step){
+			int row = loader.getRankedRow(rank);
+			String word = loader.getLabel(row);
+
+			long start = System.nanoTime();
+			WordDist[] exact = loader.getClosestWords(word, topX);
+			long middle = System.nanoTime();
+			WordDist[] approximate = getClosestWords(row, topX);
+			long end = System.nanoTime();
+			exactTime += middle - start;
+			approximateTime += end - middle;
+
+			Set<String> exactWords = new HashSet<String>();
+			for(WordDist wordDist : exact){
+				if(wordDist.getWord().length() > 0){
+					exactWords.add(wordDist.getWord());
+				}
+			}
+			for(WordDist wordDist : approximate){
+				if(exactWords.contains(wordDist.getWord())){
+					found++;
+				}
+			}
+			total += exactWords.size();
+			tested++;
+		}
+
+		double recall = total == 0 ? 1 : (double)found / total;
+		LOGGER.info("Test words: " + tested);
+		LOGGER.info("Recall@" + topX + " with ef " + ef + ": " + recall);
+		LOGGER.info("Exact ms per word: " + exactTime / 1000000.0 / Math.max(tested, 1));
+		LOGGER.info("Approximate ms per word: " + approximateTime / 1000000.0 / Math.max(tested, 1));
+		return recall;
+	}
+
+	/**
+	 * A min-heap of nodes and their scores, the lowest score is on top.
+	 */
+	private static final class NodeHeap {
+		private int[] nodes;
+		private float[] scores;
+		private int size;
+
+		NodeHeap(int capacity){
+			nodes = new int[Math.max(capacity, 1)];
+			scores = new float[Math.max(capacity, 1)];
+		}
+
+		int getSize(){
+			return size;
+		}
+
+		int getTopNode(){
+			return nodes[0];
+		}
+
+		float getTopScore(){
+			return scores[0];
+		}
+
+		void push(int node, float score){
+			if(size == nodes.length){
+				nodes = Arrays.copyOf(nodes, size * 2);
+				scores = Arrays.copyOf(scores, size * 2);
+			}
+			int child = size;
+			size++;
+			while(child > 0 && scores[(child - 1) / 2] > score){
+				int parent = (child - 1) / 2;
+				nodes[child] = nodes[parent];
+				scores[child] = scores[parent];
+				child = parent;
+			}
+			nodes[child] = node;
+			scores[child] = score;
+		}
+
+		void pop(){
+			size--;
+			int node = nodes[size];
+			float score = scores[size];
+			int parent = 0;
+			int child = 1;
+			while(child < size){
+				if(child + 1 < size && scores[child + 1] < scores[child]){
+					child++;
+				}
+				if(scores[child] >= score){
+					break;
+				}
+				nodes[parent] = nodes[child];
+				scores[parent] = scores[child];
+				parent = child;
+				child = parent * 2 + 1;
+			}
+			nodes[parent] = node;
+			scores[parent] = score;
+		}
+	}
+
+	/**
+	 * Marks the rows visited by a search. Each search uses a new mark so the
+	 * marks only need to be cleared when they run out.
+	 */
+	private static final class VisitedRows {
+		private final int[] marks;
+		private int mark;
+
+		VisitedRows(int rows){
+			marks = new int[rows];
+		}
+
+		void clear(){
+			mark++;
+			if(mark == Integer.MAX_VALUE){
+				Arrays.fill(marks, 0);
+				mark = 1;
+			}
+		}
+
+		boolean visit(int row){
+			boolean toReturn = marks[row] != mark;
+			marks[row] = mark;
+			return toReturn;
+		}
+	}
+}
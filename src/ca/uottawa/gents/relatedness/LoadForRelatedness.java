@@ -1,13 +1,29 @@
 package ca.uottawa.gents.relatedness;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
+import ca.uottawa.gents.matrix.SparseMatrix;
+
 /**
  * This class is used for loading a matrix and performing cosine similarity between
  * pairs of words represented in the matrix. It can be used to find distances between
@@ -44,6 +60,57 @@ import java.util.logging.Logger;
  * beet (0.44928065), electrodynamics (0.34833947), sleeve (0.30810094), trivium (0.30095348) ...
  * where the cosine similarity to "monkey" is indicated in brackets.
  * 
+ * A matrix that is already in memory, for example one built by BuildMatrix.generateMatrix
+ * and re-weighted by one of the weighters, can be passed directly to the constructor
+ * along with its row labels so that no files need to be written or parsed.
+ * 
+ * Rather than loading a re-weighted matrix, the original matrix can be loaded along with a
+ * column weight file such as "columns_context_TYPE.txt" from WeightFeaturesContextSupervised.
+ * The weights are applied when similarity is measured, so the matrix is the same as if every 
+ * value had been multiplied by the weight of its column. A different set of weights can be
+ * swapped in at any time with loadColumnWeights without loading the matrix again.
+ * 
+ * The matrix is held in compressed row storage, three flat arrays of row pointers, column
+ * ids and values with the columns of each row in increasing order. This takes 8 bytes for
+ * every non-zero entry and lets the shared columns of two rows be found by merging them.
+ * 
+ * To find the closest words the matrix is also indexed by column the first time it is needed.
+ * Only the rows sharing a column with the word are scored, by going down each of its columns
+ * and adding up the products of every row found there. This gives the same list as measuring
+ * the similarity to every word, but does far less work for sparse rows. It doubles the memory
+ * used by the matrix, useColumnIndex(false) goes back to measuring every word.
+ * 
+ * Finding the closest words can be split over several threads by giving an ExecutorService
+ * to setExecutor. The rows are divided into chunks, the best words of each chunk are found
+ * by a separate task and the lists are then merged. distance and getClosestWords can be
+ * called from many threads at once, but column weights should not be loaded while they are.
+ * 
+ * The closest words to many words can be found together by passing an array of words to
+ * getClosestWords. The rows are gone through one block at a time, finding the scores of
+ * every word in the batch against a block before moving to the next, so that the scores 
+ * and the part of the column index for a block stay in the cache for the whole batch.
+ * 
+ * A neighbour file written by BuildThesaurus can be loaded with loadNeighbours. It is mapped
+ * into memory rather than read, and getClosestWords then returns the stored neighbours of a
+ * word whenever no more are asked for than the file holds.
+ * 
+ * An HnswIndex built from the loader can be given to useGraphIndex, getClosestWords then
+ * finds approximate closest words by searching its graph rather than measuring every word.
+ * 
+ * Parsing a large matrix file takes a long time, so a loaded matrix can be saved once with 
+ * writeMatrixFile, or CompileMatrix, as a binary matrix file holding the rows, the column index,
+ * the magnitude of every row and the sorted labels. Passing that file alone to the constructor
+ * maps it into memory instead of reading it. Only the arrays with one value per row or column
+ * are copied onto the heap, each row and column is read from the mapping when it is used and 
+ * words are found by a binary search of the labels. Loading takes moments and programs mapping
+ * the same file share one copy of it in the page cache.
+ * 
+ * Dense vectors, such as those written by ReduceMatrix, can be loaded in place of a sparse
+ * matrix. Their file starts with the number of rows and the number of dimensions and each
+ * line after holds every value of a row. Every row then takes the same space, cosine is a
+ * plain dot product of two runs of values and the closest words are found by measuring every
+ * word, as there are no columns to index. Column weights are not used with dense vectors.
+ * 
  * @author akennedy
  *
  */
@@ -52,11 +119,97 @@ public class LoadForRelatedness {
 	private Map<String,Integer> words;
 	//holds the denominator scores for each word, calculated at load time.
 	private float[] wordVectorValue;
-	// holds the matrix, every word is made up of a TreeMap of column, value pairs.
-	private List<Map<Integer,Float>> matrix;
+	// holds the matrix, the columns of row i are columnIds[rowPointers[i]] up to columnIds[rowPointers[i+1]-1]
+	// in increasing order, and their values are found at the same positions in values.
+	private int[] rowPointers;
+	private int[] columnIds;
+	private float[] values;
+	// holds the square of each column's weight, null if the columns are not weighted.
+	private float[] squaredWeights;
+	// the number of values in every row of dense vectors, row i starting at values[i*dimensions], 0 for a sparse matrix.
+	private int dimensions;
+	
+	// the word of each row, the position of each row when the words are sorted and the row at each position.
+	private String[] labels;
+	private int[] wordRanks;
+	private int[] rankedRows;
+	
+	// the matrix by columns, built the first time the closest words are found.
+	private volatile int[] columnPointers;
+	private int[] rowIds;
+	private float[] columnValues;
+	private boolean columnIndex = true;
+	
+	// runs the chunks of rows when finding the closest words, null to use the calling thread.
+	private ExecutorService executor;
+	private int chunkCount = 1;
+	
+	// the mapped neighbour file, split into pieces that hold whole rows, null if none is loaded.
+	private MappedByteBuffer[] neighbourSegments;
+	private int neighbourCount;
+	private int segmentRows;
+	
+	// the graph used to find approximate closest words, null to find them exactly.
+	private HnswIndex graphIndex;
+	
+	// a copy of the values with 8 or 16 bits each used to find candidates for the closest words, 
+	// null to use the full values, and how many times topX candidates are measured again in full.
+	private QuantizedValues quantizedValues;
+	private int rerankFactor;
+	
+	// the parts of a mapped matrix file, null when the matrix is held on the heap.
+	private MappedSection mappedIds;
+	private MappedSection mappedValues;
+	private MappedSection mappedRowIds;
+	private MappedSection mappedColumnValues;
+	private MappedSection mappedLabelOffsets;
+	private MappedSection mappedLabels;
+	
+	// copies of the rows and columns of a mapped matrix made by each thread.
+	private final ThreadLocal<DecodedRuns> decodedRuns = new ThreadLocal<DecodedRuns>(){
+		@Override
+		protected DecodedRuns initialValue(){
+			return new DecodedRuns();
+		}
+	};
+	
+	// scores and touched rows of each thread finding the closest words, reused from one word to the next.
+	private final ThreadLocal<float[]> scratchScores = new ThreadLocal<float[]>(){
+		@Override
+		protected float[] initialValue(){
+			return new float[wordVectorValue.length];
+		}
+	};
+	private final ThreadLocal<int[]> scratchRows = new ThreadLocal<int[]>(){
+		@Override
+		protected int[] initialValue(){
+			return new int[wordVectorValue.length];
+		}
+	};
 	
 	private static final Logger LOGGER = Logger.getLogger(LoadForRelatedness.class.getName());
 	
+	//when one row is this many times longer than the other it is searched rather than merged
+	private static final int GALLOP_RATIO = 8;
+	//number of rows scored for every word of a batch before moving to the next rows
+	private static final int BATCH_BLOCK = 16384;
+	//start of a binary matrix file, "GTM1", its version and the bytes taken by its header
+	private static final int MATRIX_MAGIC = 0x47544D31;
+	private static final int MATRIX_VERSION = 1;
+	private static final int MATRIX_HEADER_BYTES = 32;
+	
+	
+	/**
+	 * This constructor maps a binary matrix file written by writeMatrixFile into
+	 * memory. The words and the column index are part of the file. A file that is
+	 * not a binary matrix file, is of another version or is cut short throws an
+	 * IllegalArgumentException and one that cannot be read an IllegalStateException.
+	 * 
+	 * @param matrixFile
+	 */
+	public LoadForRelatedness(String matrixFile){
+		mapMatrix(matrixFile);
+	}
 	
 	/**
 	 * This constructor takes two arguments, the first being a list of words found
@@ -71,13 +224,150 @@ public class LoadForRelatedness {
 		loadWords(wordsFile);
 		loadMatrix(matrixFile);
 	}
+	
+	/**
+	 * This constructor takes the list of words found in the matrix and the 
+	 * matrix itself from memory.
+	 * 
+	 * @param labels
+	 * @param sparseMatrix
+	 */
+	public LoadForRelatedness(List<String> labels, SparseMatrix sparseMatrix){
+		loadWords(labels);
+		loadMatrix(sparseMatrix);
+	}
+	
+	/**
+	 * This constructor takes the list of words and dense vectors held in memory, 
+	 * such as those returned by ReduceMatrix.reduce. The vector of row i is found
+	 * at positions i*dimensions up to (i+1)*dimensions-1.
+	 * 
+	 * @param labels
+	 * @param vectors
+	 * @param dimensions
+	 */
+	public LoadForRelatedness(List<String> labels, float[] vectors, int dimensions){
+		loadWords(labels);
+		loadVectors(vectors, dimensions);
+	}
+	
+	/**
+	 * This constructor loads the words and the matrix as above, along with a file
+	 * of column weights that are applied to the matrix when measuring similarity.
+	 * 
+	 * @param wordsFile
+	 * @param matrixFile
+	 * @param weightsFile
+	 */
+	public LoadForRelatedness(String wordsFile, String matrixFile, String weightsFile){
+		loadWords(wordsFile);
+		loadMatrix(matrixFile);
+		loadColumnWeights(weightsFile);
+	}
+	
+	/**
+	 * Loads a column weight file where each line holds a column number and its
+	 * weight, "columns_context_TYPE.txt" for example. The weights replace any that
+	 * were loaded before and the magnitude of every word vector is recalculated
+	 * with the new weights, the matrix itself is not changed.
+	 * 
+	 * @param file
+	 */
+	public void loadColumnWeights(String file) {
+		if(dimensions > 0){
+			LOGGER.warning("Column weights are not used with dense vectors");
+			return;
+		}
+		List<Float> weights = new ArrayList<Float>();
+		try{
+			BufferedReader weightReader = new BufferedReader(new FileReader(file));
+			for ( ; ; ) {
+				String line = weightReader.readLine();
+	
+				if (line == null) {
+					weightReader.close();
+					break;
+				}
+				else {
+					String[] parts = line.split(" ");
+					int column = Integer.parseInt(parts[0]);
+					while(weights.size() <= column){
+						weights.add(1f);
+					}
+					weights.set(column, Float.parseFloat(parts[1]));
+				}
+			}
+		}
+		catch(Exception e){
+			//the weights loaded before are kept
+			LOGGER.warning("Could not read column weights from " + file + ": " + e.getMessage());
+			return;
+		}
+		
+		//columns after the last one in the file keep a weight of 1
+		int columns = 0;
+		if(columnPointers != null){
+			columns = columnPointers.length - 1;
+		}
+		else{
+			for(int i = 0; i < rowPointers[wordVectorValue.length]; i++){
+				columns = Math.max(columns, columnIds[i]+1);
+			}
+		}
+		float[] squares = new float[Math.max(columns, weights.size())];
+		Arrays.fill(squares, 1);
+		for(int i = 0; i < weights.size(); i++){
+			squares[i] = weights.get(i) * weights.get(i);
+		}
+		squaredWeights = squares;
+		calculateVectorValues();
+		LOGGER.info("Loaded " + squares.length + " column weights");
+	}
+	
+	/**
+	 * Removes the column weights so that the matrix is used as it was loaded.
+	 */
+	public void clearColumnWeights() {
+		squaredWeights = null;
+		calculateVectorValues();
+	}
+	
+	/**
+	 * Recalculates the magnitude of every word vector, taking the column weights
+	 * into account if there are any.
+	 */
+	private void calculateVectorValues() {
+		for(int i = 0; i < wordVectorValue.length; i++){
+			double wordScore = 0;
+			for(int j = rowPointers[i]; j < rowPointers[i+1]; j++){
+				float magnitued = getValue(j);
+				wordScore += magnitued * magnitued * getSquaredWeight(getColumnId(j));
+			}
+			wordVectorValue[i] = (float)Math.sqrt(wordScore);
+		}
+	}
+	
+	/**
+	 * Gets the square of a column's weight, 1 if there are no column weights.
+	 * 
+	 * @param column
+	 * @return
+	 */
+	float getSquaredWeight(int column) {
+		float toReturn = 1;
+		if(squaredWeights != null){
+			toReturn = squaredWeights[column];
+		}
+		return toReturn;
+	}
 
 	/**
 	 * Loads the sparse matrix rows file "matrix_crs.mat". It reads the file
 	 * and simultaneously calculates the magnitude of each word vector in the matrix
 	 * thus calculating most of the denominator at load time. This slows down the
 	 * load time somewhat, but hopefully will save time when running many queries
-	 * on the matrix.
+	 * on the matrix. A file of dense vectors, whose first line gives only the
+	 * number of rows and dimensions, is loaded by loadVectors.
 	 * 
 	 * 
 	 * @param file
@@ -87,29 +377,42 @@ public class LoadForRelatedness {
 			BufferedReader matrixReader = new BufferedReader(new FileReader(file));
 			String line = matrixReader.readLine();
 			String[] parts = line.split(" ");
-			wordVectorValue = new float[Integer.parseInt(parts[0])];
-			matrix = new ArrayList<Map<Integer,Float>>();
+			if(parts.length == 2){
+				loadVectors(matrixReader, Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+				return;
+			}
+			int rows = Integer.parseInt(parts[0]);
+			int entries = Integer.parseInt(parts[2]);
+			wordVectorValue = new float[rows];
+			rowPointers = new int[rows+1];
+			columnIds = new int[entries];
+			values = new float[entries];
 			int count = 0;
+			int entry = 0;
 			
 			for ( ; ; ) {
 				line = matrixReader.readLine();
 	
-				if (line == null) {
+				if (line == null || count == rows) {
 					matrixReader.close();
 					break;
 				}
 				else {
-					String[] values = line.split(" ");
-					Map<Integer,Float> rowMap = new TreeMap<Integer,Float>();
-					double wordScore = 0;
-					for(int i = 1; i < values.length; i+=2){
-						int contextID = Integer.parseInt(values[i-1]);
-						float magnitued = Float.parseFloat(values[i]);
-						rowMap.put(contextID, magnitued);
-						wordScore += magnitued * magnitued;
+					String[] rowValues = line.split(" ");
+					for(int i = 1; i < rowValues.length; i+=2){
+						if(entry == columnIds.length){
+							columnIds = Arrays.copyOf(columnIds, columnIds.length * 2 + 1);
+							values = Arrays.copyOf(values, values.length * 2 + 1);
+						}
+						int contextID = Integer.parseInt(rowValues[i-1]);
+						float magnitued = Float.parseFloat(rowValues[i]);
+						columnIds[entry] = contextID;
+						values[entry] = magnitued;
+						entry++;
 					}
-					matrix.add(rowMap);
-					wordVectorValue[count] = (float)Math.sqrt(wordScore);
+					entry = sortRow(rowPointers[count], entry);
+					rowPointers[count+1] = entry;
+					wordVectorValue[count] = getRowMagnitude(rowPointers[count], entry);
 					
 					count++;
 					if(count % 10000 == 0){
@@ -117,11 +420,378 @@ public class LoadForRelatedness {
 					}
 				}
 			}
+			//rows missing from the end of the file are empty
+			for(int i = count+1; i <= rows; i++){
+				rowPointers[i] = entry;
+			}
+		}
+		catch(IllegalStateException e){
+			//a matrix too large to hold is not loaded at all
+			throw e;
 		}
 		catch(Exception e){
 			LOGGER.warning(e.getMessage());
 		}
 	}
+	
+	/**
+	 * Maps a binary matrix file into memory. The row pointers, magnitudes, ranks and
+	 * column pointers are copied onto the heap, everything else is read from the
+	 * mapping when needed. The header is checked and the file must be long enough
+	 * for every section before anything is mapped, so a bad file never leaves a 
+	 * partly loaded matrix.
+	 * 
+	 * @param file
+	 */
+	private void mapMatrix(String file) {
+		RandomAccessFile matrixFile = null;
+		try{
+			matrixFile = new RandomAccessFile(file, "r");
+			FileChannel channel = matrixFile.getChannel();
+			if(channel.size() < MATRIX_HEADER_BYTES){
+				throw new IllegalArgumentException(file + " is too short to be a binary matrix file");
+			}
+			int magic = matrixFile.readInt();
+			int version = matrixFile.readInt();
+			int rows = matrixFile.readInt();
+			int size = matrixFile.readInt();
+			int entries = matrixFile.readInt();
+			int columns = matrixFile.readInt();
+			int wordCount = matrixFile.readInt();
+			int labelLength = matrixFile.readInt();
+			if(magic != MATRIX_MAGIC){
+				throw new IllegalArgumentException(file + " is not a binary matrix file");
+			}
+			if(version != MATRIX_VERSION){
+				throw new IllegalArgumentException(file + " is version " + version + " of the binary matrix file, only version " + MATRIX_VERSION + " can be read");
+			}
+			if(rows < 0 || size < 0 || entries < 0 || columns < 0 || wordCount < 0 || labelLength < 0){
+				throw new IllegalArgumentException(file + " has a bad header");
+			}
+			long length = MATRIX_HEADER_BYTES + 4L * (rows+1) + 8L * rows + 4L * wordCount + 4L * (rows+1) 
+					+ (labelLength + 3L) / 4 * 4 + 4L * entries;
+			if(size == 0){
+				length += 4L * entries + 4L * (columns+1) + 8L * entries;
+			}
+			if(channel.size() < length){
+				throw new IllegalArgumentException(file + " is cut short, it should have " + length + " bytes but has " + channel.size());
+			}
+			
+			long position = MATRIX_HEADER_BYTES;
+			rowPointers = new int[rows+1];
+			new MappedSection(channel, position, rows+1, 4).getInts(0, rowPointers, 0, rows+1);
+			position += 4L * (rows+1);
+			wordVectorValue = new float[rows];
+			new MappedSection(channel, position, rows, 4).getFloats(0, wordVectorValue, 0, rows);
+			position += 4L * rows;
+			wordRanks = new int[rows];
+			new MappedSection(channel, position, rows, 4).getInts(0, wordRanks, 0, rows);
+			position += 4L * rows;
+			rankedRows = new int[wordCount];
+			new MappedSection(channel, position, wordCount, 4).getInts(0, rankedRows, 0, wordCount);
+			position += 4L * wordCount;
+			mappedLabelOffsets = new MappedSection(channel, position, rows+1, 4);
+			position += 4L * (rows+1);
+			mappedLabels = new MappedSection(channel, position, labelLength, 1);
+			position += (labelLength + 3L) / 4 * 4;
+			if(size == 0){
+				mappedIds = new MappedSection(channel, position, entries, 4);
+				position += 4L * entries;
+			}
+			mappedValues = new MappedSection(channel, position, entries, 4);
+			position += 4L * entries;
+			dimensions = size;
+			if(size == 0){
+				int[] pointers = new int[columns+1];
+				new MappedSection(channel, position, columns+1, 4).getInts(0, pointers, 0, columns+1);
+				position += 4L * (columns+1);
+				mappedRowIds = new MappedSection(channel, position, entries, 4);
+				position += 4L * entries;
+				mappedColumnValues = new MappedSection(channel, position, entries, 4);
+				columnPointers = pointers;
+			}
+			LOGGER.info("Mapped " + rows + " rows and " + entries + " entries");
+		}
+		catch(IOException e){
+			throw new IllegalStateException("Could not map " + file + ": " + e.getMessage(), e);
+		}
+		finally{
+			//the mappings stay valid once the file is closed
+			if(matrixFile != null){
+				try{
+					matrixFile.close();
+				}
+				catch(IOException e){
+					LOGGER.warning(e.getMessage());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes the matrix and its words to a binary matrix file that can be mapped by
+	 * the constructor taking only that file. The file starts with eight ints: "GTM1",
+	 * the version, the number of rows, the dimensions of dense vectors or 0, the number
+	 * of entries, the number of columns, the number of words and the bytes taken by the
+	 * labels. These are followed by the row pointers, the magnitude of every row without
+	 * column weights, the rank of every row, the row of every rank, where each label
+	 * starts, the labels in UTF-8 padded to a multiple of 4 bytes, the column ids, the
+	 * values, and for a sparse matrix the column index as column pointers, row ids and
+	 * values. Column weights are not saved.
+	 * 
+	 * @param fname
+	 */
+	public void writeMatrixFile(String fname) {
+		if(dimensions == 0 && columnPointers == null){
+			buildColumnIndex();
+		}
+		try{
+			int rows = wordVectorValue.length;
+			int entries = rowPointers[rows];
+			int columns = dimensions > 0 ? 0 : columnPointers.length - 1;
+			byte[][] labelBytes = new byte[rows][];
+			int labelLength = 0;
+			for(int row = 0; row < rows; row++){
+				String label = getRank(row) >= 0 ? getLabel(row) : null;
+				labelBytes[row] = label == null ? new byte[0] : label.getBytes("UTF-8");
+				labelLength += labelBytes[row].length;
+			}
+			
+			DataOutputStream matrixWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname)));
+			matrixWriter.writeInt(MATRIX_MAGIC);
+			matrixWriter.writeInt(MATRIX_VERSION);
+			matrixWriter.writeInt(rows);
+			matrixWriter.writeInt(dimensions);
+			matrixWriter.writeInt(entries);
+			matrixWriter.writeInt(columns);
+			matrixWriter.writeInt(rankedRows.length);
+			matrixWriter.writeInt(labelLength);
+			for(int row = 0; row <= rows; row++){
+				matrixWriter.writeInt(rowPointers[row]);
+			}
+			for(int row = 0; row < rows; row++){
+				double wordScore = 0;
+				for(int j = rowPointers[row]; j < rowPointers[row+1]; j++){
+					float magnitued = getValue(j);
+					wordScore += magnitued * magnitued;
+				}
+				matrixWriter.writeFloat((float)Math.sqrt(wordScore));
+			}
+			for(int row = 0; row < rows; row++){
+				matrixWriter.writeInt(getRank(row));
+			}
+			for(int rank = 0; rank < rankedRows.length; rank++){
+				matrixWriter.writeInt(rankedRows[rank]);
+			}
+			int offset = 0;
+			for(int row = 0; row < rows; row++){
+				matrixWriter.writeInt(offset);
+				offset += labelBytes[row].length;
+			}
+			matrixWriter.writeInt(offset);
+			for(int row = 0; row < rows; row++){
+				matrixWriter.write(labelBytes[row]);
+			}
+			for(int i = labelLength; i % 4 != 0; i++){
+				matrixWriter.writeByte(0);
+			}
+			if(dimensions == 0){
+				for(int j = 0; j < entries; j++){
+					matrixWriter.writeInt(getColumnId(j));
+				}
+			}
+			for(int j = 0; j < entries; j++){
+				matrixWriter.writeFloat(getValue(j));
+			}
+			if(dimensions == 0){
+				for(int column = 0; column <= columns; column++){
+					matrixWriter.writeInt(columnPointers[column]);
+				}
+				for(int j = 0; j < entries; j++){
+					matrixWriter.writeInt(mappedRowIds != null ? mappedRowIds.getInt(j) : rowIds[j]);
+				}
+				for(int j = 0; j < entries; j++){
+					matrixWriter.writeFloat(mappedColumnValues != null ? mappedColumnValues.getFloat(j) : columnValues[j]);
+				}
+			}
+			matrixWriter.close();
+			LOGGER.info("Wrote " + rows + " rows and " + entries + " entries to " + fname);
+		}
+		catch(IOException e){
+			LOGGER.warning(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Loads dense vectors from a file after its first line, each line holding every 
+	 * value of one row. Rows missing from the end of the file are left as 0.
+	 * 
+	 * @param matrixReader
+	 * @param rows
+	 * @param size
+	 * @throws IOException
+	 */
+	private void loadVectors(BufferedReader matrixReader, int rows, int size) throws IOException {
+		if((long)rows * size > Integer.MAX_VALUE){
+			matrixReader.close();
+			throw new IllegalStateException(rows + " vectors of " + size + " dimensions need " + (long)rows * size + " values, more than an array can hold");
+		}
+		float[] vectors = new float[rows * size];
+		int count = 0;
+		for ( ; ; ) {
+			String line = matrixReader.readLine();
+
+			if (line == null || count == rows) {
+				matrixReader.close();
+				break;
+			}
+			else {
+				String[] rowValues = line.trim().split(" ");
+				for(int i = 0; i < rowValues.length && i < size; i++){
+					vectors[count * size + i] = Float.parseFloat(rowValues[i]);
+				}
+				count++;
+				if(count % 10000 == 0){
+					LOGGER.info("Loaded "+count+" lines");
+				}
+			}
+		}
+		loadVectors(vectors, size);
+	}
+	
+	/**
+	 * Uses an array of dense vectors as the matrix. Each row takes the same
+	 * run of values and the magnitude of every vector is calculated.
+	 * 
+	 * @param vectors
+	 * @param size
+	 */
+	private void loadVectors(float[] vectors, int size) {
+		int rows = size == 0 ? 0 : vectors.length / size;
+		dimensions = size;
+		values = vectors;
+		columnIds = null;
+		squaredWeights = null;
+		rowPointers = new int[rows+1];
+		for(int row = 0; row <= rows; row++){
+			rowPointers[row] = row * size;
+		}
+		wordVectorValue = new float[rows];
+		calculateVectorValues();
+		LOGGER.info("Loaded " + rows + " vectors of " + size + " dimensions");
+	}
+	
+	/**
+	 * Puts the entries of a row in order of their column ids if they are not
+	 * already, matrix files are normally written in order so this rarely has
+	 * anything to do. A column id given more than once in the row keeps only
+	 * its last value, so the row may become shorter. Returns the new end of
+	 * the row.
+	 * 
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	private int sortRow(int start, int end) {
+		boolean sorted = true;
+		for(int i = start+1; i < end && sorted; i++){
+			sorted = columnIds[i-1] < columnIds[i];
+		}
+		int toReturn = end;
+		if(!sorted){
+			Map<Integer,Float> rowMap = new TreeMap<Integer,Float>();
+			for(int i = start; i < end; i++){
+				rowMap.put(columnIds[i], values[i]);
+			}
+			int i = start;
+			for(Map.Entry<Integer,Float> entry : rowMap.entrySet()){
+				columnIds[i] = entry.getKey();
+				values[i] = entry.getValue();
+				i++;
+			}
+			toReturn = i;
+			if(toReturn != end){
+				LOGGER.warning("Row has " + (end - toReturn) + " repeated column ids, only the last value of each is kept");
+			}
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Finds the magnitude of the entries from start up to end, without column weights.
+	 * 
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	private float getRowMagnitude(int start, int end) {
+		double wordScore = 0;
+		for(int i = start; i < end; i++){
+			wordScore += values[i] * values[i];
+		}
+		return (float)Math.sqrt(wordScore);
+	}
+
+	/**
+	 * Loads a sparse matrix held in memory, calculating the magnitude of
+	 * each word vector just as is done when loading from a file.
+	 * 
+	 * @param sparseMatrix
+	 */
+	private void loadMatrix(SparseMatrix sparseMatrix) {
+		wordVectorValue = new float[sparseMatrix.getRowCount()];
+		rowPointers = new int[sparseMatrix.getRowCount()+1];
+		columnIds = new int[sparseMatrix.getEntryCount()];
+		values = new float[sparseMatrix.getEntryCount()];
+		int entry = 0;
+		for(int row = 0; row < sparseMatrix.getRowCount(); row++){
+			for(int i = sparseMatrix.getRowStart(row); i < sparseMatrix.getRowEnd(row); i++){
+				columnIds[entry] = sparseMatrix.getColumnId(i);
+				values[entry] = (float)sparseMatrix.getValue(i);
+				entry++;
+			}
+			entry = sortRow(rowPointers[row], entry);
+			rowPointers[row+1] = entry;
+			wordVectorValue[row] = getRowMagnitude(rowPointers[row], entry);
+		}
+	}
+
+	/**
+	 * Stores every word from a list of words in the words TreeMap connecting
+	 * each word to its row in the matrix.
+	 * 
+	 * @param labels
+	 */
+	private void loadWords(List<String> labels) {
+		words = new TreeMap<String,Integer>();
+		for(int i = 0; i < labels.size(); i++){
+			words.put(labels.get(i), i);
+		}
+		indexWords();
+	}
+	
+	/**
+	 * Records the word of each row and the order of the rows when their words
+	 * are sorted. Rows whose word is repeated later in the labels are left out,
+	 * just as they are by the words TreeMap.
+	 */
+	private void indexWords() {
+		int size = 0;
+		for(int id : words.values()){
+			size = Math.max(size, id+1);
+		}
+		labels = new String[size];
+		wordRanks = new int[size];
+		Arrays.fill(wordRanks, -1);
+		rankedRows = new int[words.size()];
+		int rank = 0;
+		for(Map.Entry<String,Integer> entry : words.entrySet()){
+			labels[entry.getValue()] = entry.getKey();
+			wordRanks[entry.getValue()] = rank;
+			rankedRows[rank] = entry.getValue();
+			rank++;
+		}
+	}
 
 	/**
 	 * Loads from the "rlabel" file and stores every word in the words TreeMap
@@ -151,7 +821,7 @@ public class LoadForRelatedness {
 		catch(Exception e){
 			LOGGER.warning(e.getMessage());
 		}
-		
+		indexWords();
 	}
 	
 	/**
@@ -165,143 +835,1203 @@ public class LoadForRelatedness {
 	 */
 	public float distance(String word1, String word2){
 		float returnValue = -1;
-		int id1 = 0;
-		int id2 = 0;
-		boolean id1Found = true;
-		boolean id2Found = true;
-		try{
-			id1 = words.get(word1);
-		} catch(Exception e){
-			id1Found = false;
-		}
-		try{
-			id2 = words.get(word2);
-		} catch(Exception e){
-			id2Found = false;
-		}
+		int id1 = getRowId(word1);
+		int id2 = getRowId(word2);
 		
-		if(id1Found && id2Found){
-			//get TreeMap vectors for both the words and calculate the denominator
-			Map<Integer, Float> row1 = matrix.get(id1);
-			Map<Integer, Float> row2 = matrix.get(id2);
+		if(id1 >= 0 && id2 >= 0){
+			//calculate the denominator for both the words
 			float denominator = wordVectorValue[id1] * wordVectorValue[id2];
 			//calculate and return cosine similarity
-			returnValue = cosineValue(row1, row2, denominator);
+			returnValue = cosineValue(id1, id2, denominator);
 		}
 		return returnValue;
 	}
 	
 	/**
-	 * Takes row1 and row2 as Maps and the pre-calculated denominator. The 
-	 * shorter of these two rows is selected and iterated through. Common features 
-	 * between the two rows are identified and the numerator is calculated. Finally
-	 * it returns the cosine similarity.
+	 * Takes the ids of row1 and row2 and the pre-calculated denominator. Common 
+	 * features between the two rows are identified and the numerator is calculated, 
+	 * using the column weights if any are loaded. Finally it returns the cosine similarity.
 	 * 
 	 * @param row1
 	 * @param row2
 	 * @param denominator
 	 * @return
 	 */
-	private float cosineValue(Map<Integer, Float> row1, Map<Integer, Float> row2, float denominator){
-		float numerator = 0;
-		if(row1.keySet().size() <= row2.keySet().size()){
-			for(int key : row1.keySet()){
-				if(row2.containsKey(key)){
-					numerator += row1.get(key) * row2.get(key);
-				}
-			}
+	private float cosineValue(int row1, int row2, float denominator){
+		float numerator;
+		if(mappedValues != null){
+			numerator = mappedProduct(row1, row2);
+		}
+		else if(dimensions > 0){
+			numerator = denseProduct(values, rowPointers[row1], values, rowPointers[row2], dimensions);
 		}
 		else{
-			for(int key : row2.keySet()){
-				if(row1.containsKey(key)){
-					numerator += row1.get(key) * row2.get(key);
-				}
-			}
+			numerator = dotProduct(columnIds, values, rowPointers[row1], rowPointers[row1+1], 
+					columnIds, values, rowPointers[row2], rowPointers[row2+1], squaredWeights);
 		}
-		
 		return numerator/denominator;
 	}
 	
 	/**
-	 * This method calculates a list of the closest related words to a given word.
-	 * The first argument is a word and the second argument is the number of nearest
-	 * neighbours that are desired. If the word is not found null is returned.
-	 * Otherwise it goes through the set of words and calculates the
-	 * distance between the word passed as an argument and all other
-	 * words in the matrix using the cosineValue method. 
+	 * Finds the dot product of two rows of a mapped matrix. Both rows are first
+	 * copied from the mapping into this thread's arrays.
 	 * 
-	 * @param word
-	 * @param topX
+	 * @param row1
+	 * @param row2
 	 * @return
 	 */
-	public WordDist[] getClosestWords(String word, int topX){
-		int id1 = 0;
-		boolean id1Found = true;
-		WordDist[] toReturn = null;
-		
-		try{
-			id1 = words.get(word);
+	private float mappedProduct(int row1, int row2){
+		DecodedRuns runs = decodedRuns.get();
+		int length1 = rowPointers[row1+1] - rowPointers[row1];
+		int length2 = rowPointers[row2+1] - rowPointers[row2];
+		runs.ensure(0, length1);
+		runs.ensure(1, length2);
+		mappedValues.getFloats(rowPointers[row1], runs.values[0], 0, length1);
+		mappedValues.getFloats(rowPointers[row2], runs.values[1], 0, length2);
+		float numerator;
+		if(dimensions > 0){
+			numerator = denseProduct(runs.values[0], 0, runs.values[1], 0, dimensions);
 		}
-		catch(Exception e){
-			id1Found = false;
+		else{
+			mappedIds.getInts(rowPointers[row1], runs.ids[0], 0, length1);
+			mappedIds.getInts(rowPointers[row2], runs.ids[1], 0, length2);
+			numerator = dotProduct(runs.ids[0], runs.values[0], 0, length1, 
+					runs.ids[1], runs.values[1], 0, length2, squaredWeights);
 		}
-		
-		if(id1Found){
-			//declare the array to be returned.
-			toReturn = new WordDist[topX];
-			for(int i = 0; i < topX; i++){
-				WordDist wrdDst = new WordDist("", 0);
-				toReturn[i] = wrdDst;
-			}
-			
-			Map<Integer, Float> row1 = matrix.get(id1);
-			float denominator1 = wordVectorValue[id1];
-			//go through each word in the matrix
-			for(String key : words.keySet()){
-				int id2 = words.get(key);
-					if(id1 != id2){
-					Map<Integer, Float> row2 = matrix.get(id2);
-					float denominator = denominator1 * wordVectorValue[id2];
-					
-					float cosine =  cosineValue(row1, row2, denominator);
-					WordDist wordDist = new WordDist(key,cosine);
-					//insert the new WordDist into the array to return
-					insert(toReturn, wordDist);
+		return numerator;
+	}
+	
+	/**
+	 * Finds the dot product of two sparse rows, each given as a range of sorted column
+	 * ids and their values. If squaredWeights is not null each product is multiplied by
+	 * the squared weight of its column. Rows of similar length are merged, otherwise each
+	 * column of the shorter row is found in the longer one by galloping ahead and then
+	 * searching. Either way the shared columns are added up in increasing order.
+	 * 
+	 * @param ids1
+	 * @param values1
+	 * @param start1
+	 * @param end1
+	 * @param ids2
+	 * @param values2
+	 * @param start2
+	 * @param end2
+	 * @param squaredWeights
+	 * @return
+	 */
+	private static float dotProduct(int[] ids1, float[] values1, int start1, int end1, 
+			int[] ids2, float[] values2, int start2, int end2, float[] squaredWeights){
+		float numerator;
+		if(end2 - start2 > (end1 - start1) * GALLOP_RATIO){
+			numerator = gallopProduct(ids1, values1, start1, end1, ids2, values2, start2, end2, squaredWeights);
+		}
+		else if(end1 - start1 > (end2 - start2) * GALLOP_RATIO){
+			numerator = gallopProduct(ids2, values2, start2, end2, ids1, values1, start1, end1, squaredWeights);
+		}
+		else{
+			numerator = 0;
+			int i = start1;
+			int j = start2;
+			while(i < end1 && j < end2){
+				int key1 = ids1[i];
+				int key2 = ids2[j];
+				if(key1 == key2){
+					numerator += values1[i] * values2[j] * (squaredWeights == null ? 1 : squaredWeights[key1]);
 				}
+				//move past the smaller column, or both if they are the same
+				i += key1 <= key2 ? 1 : 0;
+				j += key2 <= key1 ? 1 : 0;
 			}
-			
 		}
-		return toReturn;
+		return numerator;
 	}
-
+	
 	/**
-	 * Inserts takes an array of type WordDist and a WordDist to be inserted into
-	 * the list. The WordDist w is placed in order into the array.
+	 * Finds the dot product of two dense vectors of the given length starting at
+	 * start1 and start2. Four sums are kept so that the additions do not each wait
+	 * on the one before, letting the loop be unrolled and vectorized.
 	 * 
-	 * @param toReturn
-	 * @param wordDist
+	 * @param vectors1
+	 * @param start1
+	 * @param vectors2
+	 * @param start2
+	 * @param length
+	 * @return
 	 */
-	private void insert(WordDist[] toReturn, WordDist wordDist) {
-		int index = toReturn.length-1;
-		while(index >= 0 && toReturn[index].getSimilarity() < wordDist.getSimilarity()){
-			if(index < toReturn.length-1){
-				toReturn[index+1] = toReturn[index];
-			}
-			index--;
+	private static float denseProduct(float[] vectors1, int start1, float[] vectors2, int start2, int length){
+		float sum0 = 0;
+		float sum1 = 0;
+		float sum2 = 0;
+		float sum3 = 0;
+		int i = 0;
+		for( ; i + 3 < length; i += 4){
+			sum0 += vectors1[start1 + i] * vectors2[start2 + i];
+			sum1 += vectors1[start1 + i + 1] * vectors2[start2 + i + 1];
+			sum2 += vectors1[start1 + i + 2] * vectors2[start2 + i + 2];
+			sum3 += vectors1[start1 + i + 3] * vectors2[start2 + i + 3];
 		}
-		if(index < toReturn.length-1){
-			toReturn[index+1] = wordDist;
-			//printWordArray(toReturn);
+		for( ; i < length; i++){
+			sum0 += vectors1[start1 + i] * vectors2[start2 + i];
 		}
-		
+		return (sum0 + sum1) + (sum2 + sum3);
 	}
 	
 	/**
-	 * Prints out the content of an array of type WordDist. It is
-	 * synchronized so that multiple threads can be called at
-	 * once.
+	 * Finds the dot product of a short row with a much longer one. For each column 
+	 * of the short row the long row is galloped through in doubling steps until a
+	 * column at least as large is passed and the step is then binary searched.
 	 * 
-	 * @param words
+	 * @param shortIds
+	 * @param shortValues
+	 * @param shortStart
+	 * @param shortEnd
+	 * @param longIds
+	 * @param longValues
+	 * @param longStart
+	 * @param longEnd
+	 * @param squaredWeights
+	 * @return
+	 */
+	private static float gallopProduct(int[] shortIds, float[] shortValues, int shortStart, int shortEnd, 
+			int[] longIds, float[] longValues, int longStart, int longEnd, float[] squaredWeights){
+		float numerator = 0;
+		int low = longStart;
+		for(int i = shortStart; i < shortEnd && low < longEnd; i++){
+			int target = shortIds[i];
+			int step = 1;
+			int high = low;
+			while(high < longEnd && longIds[high] < target){
+				low = high + 1;
+				high += step;
+				step *= 2;
+			}
+			int position = Arrays.binarySearch(longIds, low, Math.min(high + 1, longEnd), target);
+			if(position >= 0){
+				numerator += shortValues[i] * longValues[position] * (squaredWeights == null ? 1 : squaredWeights[target]);
+				low = position + 1;
+			}
+			else{
+				low = -position - 1;
+			}
+		}
+		return numerator;
+	}
+	
+	/**
+	 * This method calculates a list of the closest related words to a given word.
+	 * The first argument is a word and the second argument is the number of nearest
+	 * neighbours that are desired. If the word is not found null is returned.
+	 * Otherwise it finds the distance between the word passed as an argument
+	 * and all other words in the matrix that share a column with it using the
+	 * column index, or if the index is not used it goes through the set of words
+	 * using the cosineValue method. 
+	 * 
+	 * @param word
+	 * @param topX
+	 * @return
+	 */
+	public WordDist[] getClosestWords(String word, int topX){
+		int id1 = getRowId(word);
+		boolean id1Found = id1 >= 0;
+		WordDist[] toReturn = null;
+		
+		if(id1Found && neighbourSegments != null && topX <= neighbourCount){
+			toReturn = getStoredNeighbours(id1, topX);
+		}
+		else if(id1Found && graphIndex != null){
+			toReturn = graphIndex.getClosestWords(id1, topX);
+		}
+		else if(id1Found && quantizedValues != null){
+			toReturn = getWordDists(getQuantizedRows(id1, topX), topX);
+		}
+		else if(id1Found){
+			//keep the best rows by the order of their words
+			ScoreHeap heap;
+			if(executor == null || chunkCount <= 1){
+				heap = new ScoreHeap(topX);
+				addWords(id1, 0, wordVectorValue.length, heap);
+			}
+			else{
+				heap = getClosestRows(id1, topX);
+			}
+			
+			toReturn = getWordDists(heap, topX);
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Finds the closest words to every word in an array at once, returning the list
+	 * for each word in the same order. The list is null for words that are not found.
+	 * The lists are the same as from finding the closest words to each word on its own.
+	 * 
+	 * The rows are scored in blocks, every word in the batch is scored against one block
+	 * before moving on to the next, and each word keeps its place in its columns of the
+	 * column index from one block to the next. If an executor is set the words are split
+	 * between the chunks rather than the rows.
+	 * 
+	 * @param batch
+	 * @param topX
+	 * @return
+	 */
+	public WordDist[][] getClosestWords(String[] batch, final int topX){
+		final int[] ids = new int[batch.length];
+		for(int i = 0; i < batch.length; i++){
+			ids[i] = getRowId(batch[i]);
+		}
+		if(usesColumnIndex() && columnPointers == null){
+			buildColumnIndex();
+		}
+		
+		final ScoreHeap[] heaps = new ScoreHeap[batch.length];
+		if(neighbourSegments != null && topX <= neighbourCount){
+			WordDist[][] toReturn = new WordDist[batch.length][];
+			for(int i = 0; i < batch.length; i++){
+				if(ids[i] >= 0){
+					toReturn[i] = getStoredNeighbours(ids[i], topX);
+				}
+			}
+			return toReturn;
+		}
+		else if(graphIndex != null){
+			WordDist[][] toReturn = new WordDist[batch.length][];
+			for(int i = 0; i < batch.length; i++){
+				if(ids[i] >= 0){
+					toReturn[i] = graphIndex.getClosestWords(ids[i], topX);
+				}
+			}
+			return toReturn;
+		}
+		else if(executor == null || chunkCount <= 1){
+			addBatch(ids, 0, ids.length, topX, heaps);
+		}
+		else{
+			int chunkSize = (ids.length + chunkCount - 1) / chunkCount;
+			List<Callable<Object>> chunks = new ArrayList<Callable<Object>>();
+			for(int first = 0; first < ids.length; first += chunkSize){
+				final int chunkFirst = first;
+				final int chunkLast = Math.min(first + chunkSize, ids.length);
+				chunks.add(new Callable<Object>(){
+					@Override
+					public Object call() {
+						addBatch(ids, chunkFirst, chunkLast, topX, heaps);
+						return null;
+					}
+				});
+			}
+			runChunks(chunks);
+		}
+		
+		WordDist[][] toReturn = new WordDist[batch.length][];
+		for(int i = 0; i < batch.length; i++){
+			if(ids[i] >= 0){
+				toReturn[i] = getWordDists(heaps[i], topX);
+			}
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Maps a neighbour file written by BuildThesaurus into memory. After this the
+	 * closest words are read from the file whenever it holds enough neighbours,
+	 * each list is found directly from the row of the word. The file must have been
+	 * made from the same matrix, the column weights it was made with are the ones 
+	 * used whatever weights are loaded now.
+	 * 
+	 * @param file
+	 */
+	public void loadNeighbours(String file) {
+		try{
+			RandomAccessFile neighbourFile = new RandomAccessFile(file, "r");
+			int rows = neighbourFile.readInt();
+			int count = neighbourFile.readInt();
+			if(rows != wordVectorValue.length){
+				LOGGER.warning("Neighbour file has " + rows + " rows, the matrix has " + wordVectorValue.length);
+			}
+			else{
+				//each piece is mapped separately as a single mapping can be at most 2GB
+				FileChannel channel = neighbourFile.getChannel();
+				long rowBytes = (long)count * BuildThesaurus.ENTRY_BYTES;
+				int perSegment = (int)Math.max(1, Math.min(rows, Integer.MAX_VALUE / Math.max(rowBytes, 1)));
+				MappedByteBuffer[] segments = new MappedByteBuffer[(rows + perSegment - 1) / perSegment];
+				for(int i = 0; i < segments.length; i++){
+					long start = BuildThesaurus.HEADER_BYTES + i * perSegment * rowBytes;
+					long size = Math.min(perSegment, rows - (long)i * perSegment) * rowBytes;
+					segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+				}
+				segmentRows = perSegment;
+				neighbourCount = count;
+				neighbourSegments = segments;
+				LOGGER.info("Mapped " + count + " neighbours of " + rows + " rows");
+			}
+			neighbourFile.close();
+		}
+		catch(Exception e){
+			LOGGER.warning(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Stops using the neighbour file, the closest words are found from the matrix again.
+	 */
+	public void clearNeighbours() {
+		neighbourSegments = null;
+		neighbourCount = 0;
+	}
+	
+	/**
+	 * Sets a graph index built from this loader to be used for finding the closest 
+	 * words, which are then approximate. A neighbour file that holds enough neighbours
+	 * is still used first. Passing null goes back to finding them exactly.
+	 * 
+	 * @param index
+	 */
+	public void useGraphIndex(HnswIndex index) {
+		graphIndex = index;
+	}
+	
+	/**
+	 * Makes a copy of the values with 8 or 16 bits each, which is used to find the closest
+	 * words from then on. Each row is scaled by its largest value and 8 bits stores it as a 
+	 * byte, 16 bits as a 16 bit float in a short. The words are scored with the copy, then
+	 * the best topX * rerank of them are measured again with the full values and the best 
+	 * topX of those are returned, with their full similarities. Words missed by the copy
+	 * can still be lost, the larger rerank is the fewer are. Passing 0 bits goes back to
+	 * the full values.
+	 * 
+	 * For a sparse matrix the copy is of the column index, for dense vectors it is of the
+	 * rows. When the matrix is mapped from a file the copy is the only part of the values
+	 * held on the heap and the full values are only read for the rows measured again.
+	 * A matrix loaded onto the heap keeps its full values, and for a sparse matrix its
+	 * full column index, as they are still needed for measuring again and for the other
+	 * searches. The copy is then held as well and uses more memory rather than less, it
+	 * only makes the search faster. To save memory compile the matrix with CompileMatrix
+	 * and map it.
+	 * 
+	 * @param bits
+	 * @param rerank
+	 */
+	public void useQuantizedValues(int bits, int rerank) {
+		if(bits != 8 && bits != 16){
+			quantizedValues = null;
+		}
+		else{
+			int rows = wordVectorValue.length;
+			float[] maximums = new float[rows];
+			for(int row = 0; row < rows; row++){
+				for(int i = rowPointers[row]; i < rowPointers[row+1]; i++){
+					maximums[row] = Math.max(maximums[row], Math.abs(getValue(i)));
+				}
+			}
+			QuantizedValues quantized;
+			if(dimensions > 0){
+				quantized = new QuantizedValues(bits, maximums, rowPointers[rows]);
+				for(int row = 0; row < rows; row++){
+					for(int i = rowPointers[row]; i < rowPointers[row+1]; i++){
+						quantized.set(i, row, getValue(i));
+					}
+				}
+			}
+			else{
+				if(columnPointers == null){
+					buildColumnIndex();
+				}
+				int entries = columnPointers[columnPointers.length-1];
+				quantized = new QuantizedValues(bits, maximums, entries);
+				for(int j = 0; j < entries; j++){
+					if(mappedRowIds != null){
+						quantized.set(j, mappedRowIds.getInt(j), mappedColumnValues.getFloat(j));
+					}
+					else{
+						quantized.set(j, rowIds[j], columnValues[j]);
+					}
+				}
+			}
+			rerankFactor = Math.max(1, rerank);
+			quantizedValues = quantized;
+			LOGGER.info("Quantized the values to " + bits + " bits in " + quantized.getBytes() + " bytes");
+		}
+	}
+	
+	/**
+	 * Reads the first topX neighbours of a row from the neighbour file. Places
+	 * without a neighbour are left empty.
+	 * 
+	 * @param id1
+	 * @param topX
+	 * @return
+	 */
+	private WordDist[] getStoredNeighbours(int id1, int topX) {
+		MappedByteBuffer segment = neighbourSegments[id1 / segmentRows];
+		int position = (id1 % segmentRows) * neighbourCount * BuildThesaurus.ENTRY_BYTES;
+		WordDist[] toReturn = new WordDist[topX];
+		for(int i = 0; i < topX; i++){
+			int id2 = segment.getInt(position);
+			if(id2 >= 0){
+				toReturn[i] = new WordDist(getLabel(id2), segment.getFloat(position + 4));
+			}
+			else{
+				toReturn[i] = new WordDist("", 0);
+			}
+			position += BuildThesaurus.ENTRY_BYTES;
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Fills the heaps of the rows ids[first] up to ids[last] with their closest rows, 
+	 * going through the matrix one block of rows at a time. Rows that are -1 are skipped.
+	 * 
+	 * @param ids
+	 * @param first
+	 * @param last
+	 * @param topX
+	 * @param heaps
+	 */
+	private void addBatch(int[] ids, int first, int last, int topX, ScoreHeap[] heaps) {
+		if(quantizedValues != null){
+			//each word is scored through the whole copy on its own
+			for(int q = first; q < last; q++){
+				if(ids[q] >= 0){
+					heaps[q] = getQuantizedRows(ids[q], topX);
+				}
+			}
+			return;
+		}
+		//the next place in the column index of each column of each row
+		int[][] cursors = new int[last-first][];
+		for(int q = first; q < last; q++){
+			if(ids[q] >= 0){
+				heaps[q] = new ScoreHeap(topX);
+				if(usesColumnIndex()){
+					cursors[q-first] = getCursors(ids[q], 0);
+				}
+			}
+		}
+		
+		int rows = wordVectorValue.length;
+		for(int start = 0; start < rows; start += BATCH_BLOCK){
+			int end = Math.min(start + BATCH_BLOCK, rows);
+			for(int q = first; q < last; q++){
+				if(ids[q] >= 0){
+					if(usesColumnIndex()){
+						addSharingWords(ids[q], cursors[q-first], end, heaps[q]);
+					}
+					else{
+						addWords(ids[q], start, end, heaps[q]);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Turns a heap of the closest rows into the array of WordDist to be returned, 
+	 * best first. Places without a word are left empty.
+	 * 
+	 * @param heap
+	 * @param topX
+	 * @return
+	 */
+	WordDist[] getWordDists(ScoreHeap heap, int topX) {
+		heap.sort();
+		WordDist[] toReturn = new WordDist[topX];
+		for(int i = 0; i < topX; i++){
+			if(i < heap.getSize()){
+				toReturn[i] = new WordDist(getLabel(rankedRows[heap.getKey(i)]), heap.getScore(i));
+			}
+			else{
+				toReturn[i] = new WordDist("", 0);
+			}
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Finds the closest rows to row id1 by splitting the rows into chunks that are
+	 * run by the executor, each keeping its own heap of the best topX rows. The heaps
+	 * are then merged, as ties are broken by the order of the words the result is 
+	 * the same as when all the rows are gone through at once.
+	 * 
+	 * @param id1
+	 * @param topX
+	 * @return
+	 */
+	private ScoreHeap getClosestRows(final int id1, final int topX) {
+		if(usesColumnIndex() && columnPointers == null){
+			buildColumnIndex();
+		}
+		int rows = wordVectorValue.length;
+		int chunkSize = (rows + chunkCount - 1) / chunkCount;
+		List<Callable<ScoreHeap>> chunks = new ArrayList<Callable<ScoreHeap>>();
+		for(int start = 0; start < rows; start += chunkSize){
+			final int chunkStart = start;
+			final int chunkEnd = Math.min(start + chunkSize, rows);
+			chunks.add(new Callable<ScoreHeap>(){
+				@Override
+				public ScoreHeap call() {
+					ScoreHeap chunkHeap = new ScoreHeap(topX);
+					addWords(id1, chunkStart, chunkEnd, chunkHeap);
+					return chunkHeap;
+				}
+			});
+		}
+		
+		ScoreHeap heap = new ScoreHeap(topX);
+		for(ScoreHeap chunkHeap : runChunks(chunks)){
+			for(int i = 0; i < chunkHeap.getSize(); i++){
+				heap.add(chunkHeap.getKey(i), chunkHeap.getScore(i));
+			}
+		}
+		return heap;
+	}
+	
+	/**
+	 * Runs chunks on the executor and returns their results in order. The calling
+	 * thread does not just wait, it goes through the chunks running every one that 
+	 * no thread of the executor has started yet. It then only waits for chunks that
+	 * are already running, so a call from a thread of the same executor finishes 
+	 * even when every other thread of the executor is busy.
+	 * 
+	 * @param chunks
+	 * @return
+	 */
+	private <T> List<T> runChunks(List<Callable<T>> chunks) {
+		List<FutureTask<T>> tasks = new ArrayList<FutureTask<T>>();
+		for(Callable<T> chunk : chunks){
+			tasks.add(new FutureTask<T>(chunk));
+		}
+		for(int i = 1; i < tasks.size(); i++){
+			try{
+				executor.execute(tasks.get(i));
+			}
+			catch(RejectedExecutionException e){
+				//the calling thread runs it below
+			}
+		}
+		
+		List<T> toReturn = new ArrayList<T>();
+		try {
+			//a task that has already been started does nothing when run again
+			for(FutureTask<T> task : tasks){
+				task.run();
+			}
+			for(FutureTask<T> task : tasks){
+				toReturn.add(task.get());
+			}
+		} catch (Exception e) {
+			for(FutureTask<T> task : tasks){
+				task.cancel(true);
+			}
+			throw chunkFailure(e);
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Turns the failure of a chunk into an unchecked exception to be thrown, so that
+	 * the closest words are never returned from only some of the chunks. The cause
+	 * is the exception thrown by the chunk.
+	 * 
+	 * @param e
+	 * @return
+	 */
+	private static RuntimeException chunkFailure(Exception e) {
+		if(e instanceof InterruptedException){
+			Thread.currentThread().interrupt();
+		}
+		Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+		RuntimeException toReturn;
+		if(cause instanceof RuntimeException){
+			toReturn = (RuntimeException)cause;
+		}
+		else{
+			toReturn = new IllegalStateException("Finding the closest words failed", cause);
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Finds the closest rows to row id1 with the quantized values, keeping the best 
+	 * topX * rerankFactor of them, then measures those again with the full values 
+	 * and keeps the best topX.
+	 * 
+	 * @param id1
+	 * @param topX
+	 * @return
+	 */
+	private ScoreHeap getQuantizedRows(int id1, int topX) {
+		ScoreHeap candidates = new ScoreHeap(topX * rerankFactor);
+		float denominator1 = wordVectorValue[id1];
+		if(dimensions > 0){
+			float scale1 = quantizedValues.getScale(id1);
+			for(int id2 = 0; id2 < wordRanks.length; id2++){
+				if(id1 != id2 && wordRanks[id2] >= 0){
+					float product = quantizedValues.dotProduct(rowPointers[id1], rowPointers[id2], dimensions);
+					float denominator = denominator1 * wordVectorValue[id2];
+					candidates.add(wordRanks[id2], product * scale1 * quantizedValues.getScale(id2) / denominator);
+				}
+			}
+		}
+		else{
+			int touchedCount = accumulateQuantized(id1);
+			float[] scores = scratchScores.get();
+			int[] touched = scratchRows.get();
+			for(int i = 0; i < touchedCount; i++){
+				int id2 = touched[i];
+				if(id2 != id1 && id2 < wordRanks.length && wordRanks[id2] >= 0){
+					float denominator = denominator1 * wordVectorValue[id2];
+					candidates.add(wordRanks[id2], scores[id2] * quantizedValues.getScale(id2) / denominator);
+				}
+				scores[id2] = 0;
+			}
+		}
+		
+		ScoreHeap heap = new ScoreHeap(topX);
+		for(int i = 0; i < candidates.getSize(); i++){
+			int rank = candidates.getKey(i);
+			heap.add(rank, getSimilarity(id1, rankedRows[rank]));
+		}
+		return heap;
+	}
+	
+	/**
+	 * Adds up the products of row id1 with the quantized values of the rows sharing 
+	 * its columns into this thread's scores, as accumulate does with the full values
+	 * for every row. The scores are left to be multiplied by the scale of each row. 
+	 * The rows given a score are listed in this thread's touched rows and their number
+	 * is returned.
+	 * 
+	 * @param id1
+	 * @return
+	 */
+	private int accumulateQuantized(int id1) {
+		float[] scores = scratchScores.get();
+		int[] touched = scratchRows.get();
+		int touchedCount = 0;
+		for(int i = rowPointers[id1]; i < rowPointers[id1+1]; i++){
+			int column = getColumnId(i);
+			float value = getValue(i) * getSquaredWeight(column);
+			int columnStart = columnPointers[column];
+			int columnEnd = columnPointers[column+1];
+			int[] ids = rowIds;
+			int offset = 0;
+			if(mappedRowIds != null){
+				DecodedRuns runs = decodedRuns.get();
+				runs.ensure(2, columnEnd - columnStart);
+				mappedRowIds.getInts(columnStart, runs.ids[2], 0, columnEnd - columnStart);
+				ids = runs.ids[2];
+				offset = columnStart;
+			}
+			for(int j = columnStart; j < columnEnd; j++){
+				int id2 = ids[j - offset];
+				float product = value * quantizedValues.get(j);
+				if(product != 0){
+					if(scores[id2] == 0){
+						if(touchedCount == touched.length){
+							touched = Arrays.copyOf(touched, touched.length * 2);
+							scratchRows.set(touched);
+						}
+						touched[touchedCount] = id2;
+						touchedCount++;
+					}
+					scores[id2] += product;
+				}
+			}
+		}
+		return touchedCount;
+	}
+	
+	/**
+	 * Adds the rows from start up to end to the heap along with their similarity to
+	 * row id1, using the column index if it is turned on and otherwise measuring 
+	 * every row.
+	 * 
+	 * @param id1
+	 * @param start
+	 * @param end
+	 * @param heap
+	 */
+	private void addWords(int id1, int start, int end, ScoreHeap heap) {
+		if(usesColumnIndex()){
+			addSharingWords(id1, start, end, heap);
+		}
+		else{
+			float denominator1 = wordVectorValue[id1];
+			//go through each word in the matrix
+			for(int id2 = start; id2 < end && id2 < wordRanks.length; id2++){
+				if(id1 != id2 && wordRanks[id2] >= 0){
+					float denominator = denominator1 * wordVectorValue[id2];
+					
+					float cosine =  cosineValue(id1, id2, denominator);
+					heap.add(wordRanks[id2], cosine);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Scores every row from start up to end sharing a column with row id1 and adds them
+	 * to the heap. Each column of the row is gone through in the column index and the 
+	 * product with every row found there is added to that row's score, adding them in 
+	 * the same order as cosineValue. Rows that share no column have a similarity of 0
+	 * and would not be kept anyway.
+	 * 
+	 * @param id1
+	 * @param start
+	 * @param end
+	 * @param heap
+	 */
+	private void addSharingWords(int id1, int start, int end, ScoreHeap heap) {
+		if(columnPointers == null){
+			buildColumnIndex();
+		}
+		addSharingWords(id1, getCursors(id1, start), end, heap);
+	}
+	
+	/**
+	 * Finds the place in the column index of the first row not before start, for
+	 * each column of row id1.
+	 * 
+	 * @param id1
+	 * @param start
+	 * @return
+	 */
+	private int[] getCursors(int id1, int start) {
+		int[] cursors = new int[rowPointers[id1+1] - rowPointers[id1]];
+		for(int i = rowPointers[id1]; i < rowPointers[id1+1]; i++){
+			cursors[i - rowPointers[id1]] = firstInColumn(getColumnId(i), start);
+		}
+		return cursors;
+	}
+	
+	/**
+	 * Scores the rows sharing a column with row id1 as above, starting from the place
+	 * in each column given by cursors and stopping before the row end. The cursors are
+	 * moved on to the first row not scored so that the next block can carry on from them.
+	 * 
+	 * @param id1
+	 * @param cursors
+	 * @param end
+	 * @param heap
+	 */
+	private void addSharingWords(int id1, int[] cursors, int end, ScoreHeap heap) {
+		int touchedCount = accumulate(id1, cursors, end);
+		float[] scores = scratchScores.get();
+		int[] touched = scratchRows.get();
+		float denominator1 = wordVectorValue[id1];
+		for(int i = 0; i < touchedCount; i++){
+			int id2 = touched[i];
+			if(id2 != id1 && id2 < wordRanks.length && wordRanks[id2] >= 0){
+				float denominator = denominator1 * wordVectorValue[id2];
+				heap.add(wordRanks[id2], scores[id2]/denominator);
+			}
+			scores[id2] = 0;
+		}
+	}
+	
+	/**
+	 * Scores every row after id1 that has a word and shares a column with it. The 
+	 * rows are placed in rows and their similarities in similarities, which must
+	 * have room for every row, and the number of rows found is returned. As the
+	 * similarity of two rows is the same whichever comes first this lets each pair
+	 * be scored only once when the neighbours of every row are found.
+	 * 
+	 * @param id1
+	 * @param rows
+	 * @param similarities
+	 * @return
+	 */
+	int scoreLaterRows(int id1, int[] rows, float[] similarities) {
+		if(dimensions > 0){
+			int count = 0;
+			for(int id2 = id1+1; id2 < wordVectorValue.length; id2++){
+				if(id2 < wordRanks.length && wordRanks[id2] >= 0){
+					rows[count] = id2;
+					similarities[count] = getSimilarity(id1, id2);
+					count++;
+				}
+			}
+			return count;
+		}
+		if(columnPointers == null){
+			buildColumnIndex();
+		}
+		int touchedCount = accumulate(id1, getCursors(id1, id1+1), wordVectorValue.length);
+		float[] scores = scratchScores.get();
+		int[] touched = scratchRows.get();
+		float denominator1 = wordVectorValue[id1];
+		int count = 0;
+		for(int i = 0; i < touchedCount; i++){
+			int id2 = touched[i];
+			if(id2 < wordRanks.length && wordRanks[id2] >= 0){
+				float denominator = denominator1 * wordVectorValue[id2];
+				rows[count] = id2;
+				similarities[count] = scores[id2]/denominator;
+				count++;
+			}
+			scores[id2] = 0;
+		}
+		return count;
+	}
+	
+	/**
+	 * Adds up the products of row id1 with the rows sharing its columns into this
+	 * thread's scores, starting from the place in each column given by cursors and 
+	 * stopping before the row end. The rows given a score are listed in this thread's 
+	 * touched rows and their number is returned, the cursors are moved on to the first
+	 * row not scored.
+	 * 
+	 * @param id1
+	 * @param cursors
+	 * @param end
+	 * @return
+	 */
+	private int accumulate(int id1, int[] cursors, int end) {
+		float[] scores = scratchScores.get();
+		int[] touched = scratchRows.get();
+		int touchedCount = 0;
+		for(int i = rowPointers[id1]; i < rowPointers[id1+1]; i++){
+			int column = getColumnId(i);
+			float value = getValue(i);
+			float weight = getSquaredWeight(column);
+			int columnEnd = columnPointers[column+1];
+			int j = cursors[i - rowPointers[id1]];
+			int[] ids = rowIds;
+			float[] vals = columnValues;
+			int offset = 0;
+			if(mappedRowIds != null){
+				//copy the part of a mapped column before the row end into this thread's arrays
+				columnEnd = Math.max(j, firstInColumn(column, end));
+				DecodedRuns runs = decodedRuns.get();
+				runs.ensure(2, columnEnd - j);
+				mappedRowIds.getInts(j, runs.ids[2], 0, columnEnd - j);
+				mappedColumnValues.getFloats(j, runs.values[2], 0, columnEnd - j);
+				ids = runs.ids[2];
+				vals = runs.values[2];
+				offset = j;
+			}
+			for( ; j < columnEnd && ids[j - offset] < end; j++){
+				int id2 = ids[j - offset];
+				float product = value * vals[j - offset] * weight;
+				if(product != 0){
+					if(scores[id2] == 0){
+						if(touchedCount == touched.length){
+							touched = Arrays.copyOf(touched, touched.length * 2);
+							scratchRows.set(touched);
+						}
+						touched[touchedCount] = id2;
+						touchedCount++;
+					}
+					scores[id2] += product;
+				}
+			}
+			cursors[i - rowPointers[id1]] = j;
+		}
+		return touchedCount;
+	}
+	
+	/**
+	 * Finds the position in the column index of the first row of a column
+	 * that is not before the given row.
+	 * 
+	 * @param column
+	 * @param row
+	 * @return
+	 */
+	private int firstInColumn(int column, int row) {
+		int position = columnPointers[column];
+		if(row > 0 && mappedRowIds != null){
+			int high = columnPointers[column+1];
+			while(position < high){
+				int middle = (position + high) >>> 1;
+				if(mappedRowIds.getInt(middle) < row){
+					position = middle + 1;
+				}
+				else{
+					high = middle;
+				}
+			}
+		}
+		else if(row > 0){
+			position = Arrays.binarySearch(rowIds, columnPointers[column], columnPointers[column+1], row);
+			if(position < 0){
+				position = -position - 1;
+			}
+		}
+		return position;
+	}
+	
+	/**
+	 * Builds the column index, the transpose of the matrix, so that the rows
+	 * found in each column can be gone through. Column weights are not part of
+	 * the index so it does not change when other weights are loaded.
+	 */
+	private synchronized void buildColumnIndex() {
+		if(columnPointers == null){
+			int entries = rowPointers[wordVectorValue.length];
+			int columns = 0;
+			for(int i = 0; i < entries; i++){
+				columns = Math.max(columns, columnIds[i]+1);
+			}
+			int[] pointers = new int[columns+1];
+			for(int i = 0; i < entries; i++){
+				pointers[columnIds[i]+1]++;
+			}
+			for(int i = 0; i < columns; i++){
+				pointers[i+1] += pointers[i];
+			}
+			int[] next = Arrays.copyOf(pointers, columns);
+			rowIds = new int[entries];
+			columnValues = new float[entries];
+			for(int row = 0; row < wordVectorValue.length; row++){
+				for(int i = rowPointers[row]; i < rowPointers[row+1]; i++){
+					int position = next[columnIds[i]]++;
+					rowIds[position] = row;
+					columnValues[position] = values[i];
+				}
+			}
+			columnPointers = pointers;
+			LOGGER.info("Indexed " + columns + " columns");
+		}
+	}
+	
+	/**
+	 * Sets whether the column index is used to find the closest words, it is
+	 * used by default. Without it every word in the matrix is measured, which
+	 * is slower but needs no extra memory.
+	 * 
+	 * @param use
+	 */
+	public void useColumnIndex(boolean use) {
+		columnIndex = use;
+	}
+	
+	/**
+	 * Checks whether the column index is to be used, it never is for dense vectors.
+	 * 
+	 * @return
+	 */
+	private boolean usesColumnIndex() {
+		return columnIndex && dimensions == 0;
+	}
+	
+	/**
+	 * Sets the executor used to find the closest words and the number of chunks the
+	 * rows are split into, usually the number of threads the executor has. There must
+	 * be at least one chunk, and there are never more chunks than rows. The executor
+	 * can be shared with other work and is not shut down by this class. If it is null,
+	 * or there is only one chunk, the closest words are found on the calling thread.
+	 * 
+	 * The calling thread also runs every chunk the executor has not started yet, so
+	 * the closest words can be found from a task running on the same executor without
+	 * waiting on chunks that are queued behind it.
+	 * 
+	 * @param service
+	 * @param chunks
+	 */
+	public void setExecutor(ExecutorService service, int chunks) {
+		if(chunks < 1){
+			throw new IllegalArgumentException("Chunk count must be at least 1: " + chunks);
+		}
+		executor = service;
+		chunkCount = Math.max(1, Math.min(chunks, wordVectorValue.length));
+	}
+	
+	/**
+	 * Gets the number of rows in the matrix.
+	 * 
+	 * @return
+	 */
+	int getRowCount() {
+		return wordVectorValue.length;
+	}
+	
+	/**
+	 * Gets the number of entries in the matrix, rows times dimensions for dense vectors.
+	 * 
+	 * @return
+	 */
+	int getEntryCount() {
+		return rowPointers[wordVectorValue.length];
+	}
+	
+	/**
+	 * Gets the dimensions of dense vectors, 0 for a sparse matrix.
+	 * 
+	 * @return
+	 */
+	int getDimensions() {
+		return dimensions;
+	}
+	
+	/**
+	 * Gets the position of a row's word when the words are sorted, -1 if the
+	 * row has no word.
+	 * 
+	 * @param row
+	 * @return
+	 */
+	int getRank(int row) {
+		int toReturn = -1;
+		if(row < wordRanks.length){
+			toReturn = wordRanks[row];
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Gets the row whose word is at a position when the words are sorted.
+	 * 
+	 * @param rank
+	 * @return
+	 */
+	int getRankedRow(int rank) {
+		return rankedRows[rank];
+	}
+	
+	/**
+	 * Gets the word of a row.
+	 * 
+	 * @param row
+	 * @return
+	 */
+	String getLabel(int row) {
+		String toReturn = null;
+		if(labels != null){
+			toReturn = labels[row];
+		}
+		else if(row < wordRanks.length && wordRanks[row] >= 0){
+			int start = mappedLabelOffsets.getInt(row);
+			byte[] label = new byte[mappedLabelOffsets.getInt(row+1) - start];
+			mappedLabels.getBytes(start, label, 0, label.length);
+			try{
+				toReturn = new String(label, "UTF-8");
+			}
+			catch(UnsupportedEncodingException e){
+				LOGGER.warning(e.getMessage());
+			}
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Gets the row of a word, -1 if the word is not in the matrix.
+	 * 
+	 * @param word
+	 * @return
+	 */
+	int getRowId(String word) {
+		int toReturn = -1;
+		if(word != null && words != null){
+			Integer id = words.get(word);
+			toReturn = id == null ? -1 : id;
+		}
+		else if(word != null){
+			//the labels of a mapped matrix are searched in their sorted order
+			int low = 0;
+			int high = rankedRows.length - 1;
+			while(low <= high && toReturn < 0){
+				int middle = (low + high) >>> 1;
+				int compare = getLabel(rankedRows[middle]).compareTo(word);
+				if(compare < 0){
+					low = middle + 1;
+				}
+				else if(compare > 0){
+					high = middle - 1;
+				}
+				else{
+					toReturn = rankedRows[middle];
+				}
+			}
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Gets the magnitude of a row, with the column weights if there are any.
+	 * 
+	 * @param row
+	 * @return
+	 */
+	float getMagnitude(int row) {
+		return wordVectorValue[row];
+	}
+	
+	/**
+	 * Gets the cosine similarity of two rows.
+	 * 
+	 * @param id1
+	 * @param id2
+	 * @return
+	 */
+	float getSimilarity(int id1, int id2) {
+		return cosineValue(id1, id2, wordVectorValue[id1] * wordVectorValue[id2]);
+	}
+	
+	/**
+	 * Gets the index of the first entry in a row.
+	 * 
+	 * @param row
+	 * @return
+	 */
+	int getRowStart(int row) {
+		return rowPointers[row];
+	}
+	
+	/**
+	 * Gets the index one past the last entry in a row.
+	 * 
+	 * @param row
+	 * @return
+	 */
+	int getRowEnd(int row) {
+		return rowPointers[row+1];
+	}
+	
+	/**
+	 * Gets the column id of an entry.
+	 * 
+	 * @param entry
+	 * @return
+	 */
+	int getColumnId(int entry) {
+		int toReturn;
+		if(dimensions > 0){
+			toReturn = entry % dimensions;
+		}
+		else if(mappedIds != null){
+			toReturn = mappedIds.getInt(entry);
+		}
+		else{
+			toReturn = columnIds[entry];
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Gets the value of an entry.
+	 * 
+	 * @param entry
+	 * @return
+	 */
+	float getValue(int entry) {
+		float toReturn;
+		if(mappedValues != null){
+			toReturn = mappedValues.getFloat(entry);
+		}
+		else{
+			toReturn = values[entry];
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Prints out the content of an array of type WordDist. It is
+	 * synchronized so that multiple threads can be called at
+	 * once.
+	 * 
+	 * @param words
 	 */
 	public String getWordArrayString(WordDist[] words){
 		synchronized(this){
@@ -331,5 +2061,21 @@ public class LoadForRelatedness {
 			return toReturn;
 		}
 	}
+	
+	/**
+	 * Holds the copies of rows and columns read from a mapped matrix by one
+	 * thread, each slot growing as longer runs are read.
+	 */
+	private static final class DecodedRuns {
+		private final int[][] ids = new int[3][16];
+		private final float[][] values = new float[3][16];
+		
+		void ensure(int slot, int length){
+			if(ids[slot].length < length){
+				ids[slot] = new int[Math.max(length, ids[slot].length * 2)];
+				values[slot] = new float[ids[slot].length];
+			}
+		}
+	}
 
 }
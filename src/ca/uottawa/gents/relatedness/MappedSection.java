@@ -0,0 +1,136 @@
+package ca.uottawa.gents.relatedness;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class reads a run of ints, floats or bytes from a file mapped into memory. A single
+ * mapping can be at most 2GB so the run is mapped in pieces of a fixed number of values,
+ * which lets a section of a matrix file be larger than that. Values are read by their
+ * position in the run and any number of threads can read at once.
+ *
+ * It is used by LoadForRelatedness to read a matrix file written by CompileMatrix without
+ * copying the matrix onto the heap.
+ *
+ * @author akennedy
+ *
+ */
+class MappedSection {
+	//each piece holds 2^PIECE_BITS values
+	private static final int PIECE_BITS = 28;
+	private static final int PIECE_MASK = (1 << PIECE_BITS) - 1;
+
+	private final ByteBuffer[] pieces;
+	private final IntBuffer[] intPieces;
+	private final FloatBuffer[] floatPieces;
+
+	/**
+	 * Constructor maps count values of valueBytes bytes each, 4 for ints and
+	 * floats or 1 for bytes, starting at a position in the file.
+	 *
+	 * @param channel
+	 * @param position
+	 * @param count
+	 * @param valueBytes
+	 * @throws IOException
+	 */
+	MappedSection(FileChannel channel, long position, long count, int valueBytes) throws IOException {
+		int pieceCount = (int)((count + PIECE_MASK) >> PIECE_BITS);
+		pieces = new ByteBuffer[pieceCount];
+		intPieces = new IntBuffer[pieceCount];
+		floatPieces = new FloatBuffer[pieceCount];
+		for(int i = 0; i < pieceCount; i++){
+			long first = (long)i << PIECE_BITS;
+			long values = Math.min(count - first, 1L << PIECE_BITS);
+			pieces[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + first * valueBytes, values * valueBytes);
+			if(valueBytes == 4){
+				intPieces[i] = pieces[i].asIntBuffer();
+				floatPieces[i] = pieces[i].asFloatBuffer();
+			}
+		}
+	}
+
+	/**
+	 * Gets the int at a position.
+	 *
+	 * @param index
+	 * @return
+	 */
+	int getInt(long index) {
+		return intPieces[(int)(index >> PIECE_BITS)].get((int)(index & PIECE_MASK));
+	}
+
+	/**
+	 * Gets the float at a position.
+	 *
+	 * @param index
+	 * @return
+	 */
+	float getFloat(long index) {
+		return floatPieces[(int)(index >> PIECE_BITS)].get((int)(index & PIECE_MASK));
+	}
+
+	/**
+	 * Copies count ints starting at a position into an array.
+	 *
+	 * @param index
+	 * @param destination
+	 * @param offset
+	 * @param count
+	 */
+	void getInts(long index, int[] destination, int offset, int count) {
+		int done = 0;
+		while(done < count){
+			long position = index + done;
+			//each read works on its own copy of the piece so that threads do not share a position
+			IntBuffer piece = intPieces[(int)(position >> PIECE_BITS)].duplicate();
+			piece.position((int)(position & PIECE_MASK));
+			int length = Math.min(count - done, piece.remaining());
+			piece.get(destination, offset + done, length);
+			done += length;
+		}
+	}
+
+	/**
+	 * Copies count floats starting at a position into an array.
+	 *
+	 * @param index
+	 * @param destination
+	 * @param offset
+	 * @param count
+	 */
+	void getFloats(long index, float[] destination, int offset, int count) {
+		int done = 0;
+		while(done < count){
+			long position = index + done;
+			FloatBuffer piece = floatPieces[(int)(position >> PIECE_BITS)].duplicate();
+			piece.position((int)(position & PIECE_MASK));
+			int length = Math.min(count - done, piece.remaining());
+			piece.get(destination, offset + done, length);
+			done += length;
+		}
+	}
+
+	/**
+	 * Copies count bytes starting at a position into an array.
+	 *
+	 * @param index
+	 * @param destination
+	 * @param offset
+	 * @param count
+	 */
+	void getBytes(long index, byte[] destination, int offset, int count) {
+		int done = 0;
+		while(done < count){
+			long position = index + done;
+			ByteBuffer piece = pieces[(int)(position >> PIECE_BITS)].duplicate();
+			piece.position((int)(position & PIECE_MASK));
+			int length = Math.min(count - done, piece.remaining());
+			piece.get(destination, offset + done, length);
+			done += length;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package ca.uottawa.gents.relatedness;
+
+/**
+ * This class holds a compact copy of the values of a matrix, either as 8 bit integers or as
+ * 16 bit floats stored in shorts. Every row has its own scale, the largest size of a value in
+ * the row, and each value is stored divided by the scale of its row. A value is found again
+ * by multiplying by the scale, so a row of large counts loses no more precision than a row
+ * of small weights and 16 bit floats cannot overflow.
+ *
+ * With 8 bits the values are rounded to 1/127 of the largest value in their row, with 16
+ * bits to about 3 significant digits. LoadForRelatedness uses the copy to find candidate
+ * closest words cheaply and then measures the best candidates with the full values.
+ *
+ * @author akennedy
+ *
+ */
+class QuantizedValues {
+	//every 16 bit float as a float, so that they are read by a single lookup
+	private static final float[] HALF_TABLE = new float[65536];
+	static {
+		for(int i = 0; i < HALF_TABLE.length; i++){
+			HALF_TABLE[i] = fromHalf(i);
+		}
+	}
+
+	private final int bits;
+	private final float[] scales;
+	private final byte[] bytes;
+	private final short[] halves;
+
+	/**
+	 * Constructor makes room for a number of values, stored with 8 or 16 bits, and
+	 * takes the largest size of a value in each row.
+	 *
+	 * @param valueBits
+	 * @param rowMaximums
+	 * @param count
+	 */
+	QuantizedValues(int valueBits, float[] rowMaximums, int count){
+		bits = valueBits;
+		scales = new float[rowMaximums.length];
+		for(int row = 0; row < scales.length; row++){
+			float maximum = rowMaximums[row] == 0 ? 1 : rowMaximums[row];
+			scales[row] = bits == 8 ? maximum / 127 : maximum;
+		}
+		if(bits == 8){
+			bytes = new byte[count];
+			halves = null;
+		}
+		else{
+			bytes = null;
+			halves = new short[count];
+		}
+	}
+
+	/**
+	 * Stores a value of a row at a position.
+	 *
+	 * @param position
+	 * @param row
+	 * @param value
+	 */
+	void set(int position, int row, float value) {
+		if(bits == 8){
+			bytes[position] = (byte)Math.round(value / scales[row]);
+		}
+		else{
+			halves[position] = (short)toHalf(value / scales[row]);
+		}
+	}
+
+	/**
+	 * Gets the value stored at a position, before it is multiplied by the scale
+	 * of its row.
+	 *
+	 * @param position
+	 * @return
+	 */
+	float get(int position) {
+		return bits == 8 ? bytes[position] : HALF_TABLE[halves[position] & 0xFFFF];
+	}
+
+	/**
+	 * Gets the scale of a row.
+	 *
+	 * @param row
+	 * @return
+	 */
+	float getScale(int row) {
+		return scales[row];
+	}
+
+	/**
+	 * Finds the dot product of two runs of stored values of the given length, before
+	 * it is multiplied by the scales of their rows. 8 bit values are multiplied and
+	 * added as integers.
+	 *
+	 * @param start1
+	 * @param start2
+	 * @param length
+	 * @return
+	 */
+	float dotProduct(int start1, int start2, int length) {
+		float toReturn;
+		if(bits == 8){
+			int sum = 0;
+			for(int i = 0; i < length; i++){
+				sum += bytes[start1 + i] * bytes[start2 + i];
+			}
+			toReturn = sum;
+		}
+		else{
+			float sum = 0;
+			for(int i = 0; i < length; i++){
+				sum += HALF_TABLE[halves[start1 + i] & 0xFFFF] * HALF_TABLE[halves[start2 + i] & 0xFFFF];
+			}
+			toReturn = sum;
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Gets the number of bytes used by the stored values and the scales.
+	 *
+	 * @return
+	 */
+	long getBytes() {
+		long toReturn = 4L * scales.length;
+		if(bits == 8){
+			toReturn += bytes.length;
+		}
+		else{
+			toReturn += 2L * halves.length;
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Turns a float into the bits of the nearest 16 bit float. Values too large
+	 * become infinite and values too small become 0.
+	 *
+	 * @param value
+	 * @return
+	 */
+	static int toHalf(float value) {
+		int floatBits = Float.floatToIntBits(value);
+		int sign = (floatBits >>> 16) & 0x8000;
+		//add half of the last kept place so the result is rounded
+		int rounded = (floatBits & 0x7fffffff) + 0x1000;
+		int toReturn;
+		if((floatBits & 0x7fffffff) >= 0x7f800000){
+			//infinity and not a number keep their kind
+			toReturn = sign | 0x7c00 | ((floatBits & 0x7fffff) != 0 ? 0x200 : 0);
+		}
+		else if(rounded >= 0x47800000){
+			toReturn = sign | 0x7c00;
+		}
+		else if(rounded >= 0x38800000){
+			toReturn = sign | ((rounded - 0x38000000) >>> 13);
+		}
+		else if(rounded < 0x33000000){
+			toReturn = sign;
+		}
+		else{
+			//too small for the normal range, the result is subnormal
+			int exponent = (floatBits & 0x7fffffff) >>> 23;
+			toReturn = sign | (((floatBits & 0x7fffff) | 0x800000) + (0x800000 >>> (exponent - 102)) >>> (126 - exponent));
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Turns the bits of a 16 bit float into a float.
+	 *
+	 * @param half
+	 * @return
+	 */
+	static float fromHalf(int half) {
+		int sign = (half & 0x8000) << 16;
+		int exponent = (half >>> 10) & 0x1f;
+		int mantissa = half & 0x3ff;
+		float toReturn;
+		if(exponent == 0x1f){
+			toReturn = Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+		}
+		else if(exponent != 0){
+			toReturn = Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+		}
+		else{
+			toReturn = mantissa / 16777216f;
+			if(sign != 0){
+				toReturn = -toReturn;
+			}
+		}
+		return toReturn;
+	}
+}
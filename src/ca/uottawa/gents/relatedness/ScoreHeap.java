@@ -0,0 +1,185 @@
+package ca.uottawa.gents.relatedness;
+
+import java.util.Arrays;
+
+/**
+ * This class keeps the highest scoring keys seen so far, up to a fixed number of
+ * them, in a min-heap of two primitive arrays. The worst key kept is at the top of
+ * the heap so a new key only has to be compared with it. When two keys have the
+ * same score the smaller key is the better one, so giving keys in the order of their
+ * words breaks ties alphabetically. Only keys scoring above 0 are kept. The arrays
+ * grow as keys are added, so a heap that is only offered a few keys stays small.
+ *
+ * It is used by LoadForRelatedness to find the closest words without creating
+ * a WordDist for every word that is measured.
+ *
+ * @author akennedy
+ *
+ */
+class ScoreHeap {
+	//room first made for keys, the arrays then double until they can hold capacity keys
+	private static final int FIRST_SIZE = 16;
+
+	private final int capacity;
+	private int[] keys;
+	private float[] scores;
+	private int size;
+
+	/**
+	 * Constructor sets the number of keys to keep.
+	 *
+	 * @param capacity
+	 */
+	ScoreHeap(int capacity){
+		this.capacity = capacity;
+		keys = new int[Math.min(capacity, FIRST_SIZE)];
+		scores = new float[keys.length];
+		size = 0;
+	}
+
+	/**
+	 * Offers a key and its score to the heap. It is kept if there is still room
+	 * or if it is better than the worst key kept, which is then dropped.
+	 *
+	 * @param key
+	 * @param score
+	 */
+	void add(int key, float score){
+		if(score > 0){
+			if(size < capacity){
+				if(size == keys.length){
+					int length = (int)Math.min(capacity, 2L * keys.length);
+					keys = Arrays.copyOf(keys, length);
+					scores = Arrays.copyOf(scores, length);
+				}
+				keys[size] = key;
+				scores[size] = score;
+				size++;
+				siftUp(size-1);
+			}
+			else if(size > 0 && worse(keys[0], scores[0], key, score)){
+				keys[0] = key;
+				scores[0] = score;
+				siftDown(0, size);
+			}
+		}
+	}
+
+	/**
+	 * Puts the keys in order from best to worst, after which getKey and getScore
+	 * give them by position. Nothing more should be added once this is done.
+	 */
+	void sort(){
+		for(int end = size-1; end > 0; end--){
+			swap(0, end);
+			siftDown(0, end);
+		}
+	}
+
+	/**
+	 * Gets the number of keys kept.
+	 *
+	 * @return
+	 */
+	int getSize(){
+		return size;
+	}
+
+	/**
+	 * Gets the key at a position.
+	 *
+	 * @param position
+	 * @return
+	 */
+	int getKey(int position){
+		return keys[position];
+	}
+
+	/**
+	 * Gets the score at a position.
+	 *
+	 * @param position
+	 * @return
+	 */
+	float getScore(int position){
+		return scores[position];
+	}
+
+	/**
+	 * Checks whether the first key and score are worse than the second, a lower
+	 * score is worse and for the same score a larger key is worse.
+	 *
+	 * @param key1
+	 * @param score1
+	 * @param key2
+	 * @param score2
+	 * @return
+	 */
+	private static boolean worse(int key1, float score1, int key2, float score2){
+		return score1 < score2 || (score1 == score2 && key1 > key2);
+	}
+
+	/**
+	 * Moves the entry at a position up until its parent is worse than it.
+	 *
+	 * @param position
+	 */
+	private void siftUp(int position){
+		int child = position;
+		while(child > 0){
+			int parent = (child - 1) / 2;
+			if(worse(keys[child], scores[child], keys[parent], scores[parent])){
+				swap(child, parent);
+				child = parent;
+			}
+			else{
+				child = 0;
+			}
+		}
+	}
+
+	/**
+	 * Moves the entry at a position down until both of its children within
+	 * the first end entries are better than it.
+	 *
+	 * @param position
+	 * @param end
+	 */
+	private void siftDown(int position, int end){
+		int parent = position;
+		boolean done = false;
+		while(!done){
+			int worst = parent;
+			int left = parent * 2 + 1;
+			int right = left + 1;
+			if(left < end && worse(keys[left], scores[left], keys[worst], scores[worst])){
+				worst = left;
+			}
+			if(right < end && worse(keys[right], scores[right], keys[worst], scores[worst])){
+				worst = right;
+			}
+			if(worst == parent){
+				done = true;
+			}
+			else{
+				swap(parent, worst);
+				parent = worst;
+			}
+		}
+	}
+
+	/**
+	 * Swaps two entries of the heap.
+	 *
+	 * @param i
+	 * @param j
+	 */
+	private void swap(int i, int j){
+		int key = keys[i];
+		keys[i] = keys[j];
+		keys[j] = key;
+		float score = scores[i];
+		scores[i] = scores[j];
+		scores[j] = score;
+	}
+}
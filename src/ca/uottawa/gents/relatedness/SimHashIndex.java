@@ -0,0 +1,331 @@
+package ca.uottawa.gents.relatedness;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import ca.uottawa.gents.matrix.ParallelRows;
+import ca.uottawa.gents.matrix.RandomBits;
+
+/**
+ * This class finds approximate closest words much faster than measuring the similarity
+ * to every word. Each row of a matrix loaded by LoadForRelatedness is given a SimHash
+ * signature, one bit for each of a number of random hyperplanes telling which side of
+ * the hyperplane the row falls on. Two rows are on the same side of a random hyperplane
+ * with a chance that grows with their cosine similarity, so similar rows have similar
+ * signatures.
+ *
+ * The signature is cut into bands of a few bits and the rows are indexed by the bits
+ * of each band. The candidates for a word are the rows matching its signature exactly
+ * in at least one band. Their cosine similarity is then measured exactly and the best
+ * are returned, so the scores are always right but some close words may be missed.
+ * More bands find more of the closest words and fewer bits per band find more as well,
+ * at the cost of measuring more candidates. Column weights loaded in LoadForRelatedness
+ * when the index is built are taken into account.
+ *
+ * The hyperplanes are never stored, the side of each column is worked out from a hash
+ * of the column and the seed so any number of columns can be used.
+ *
+ * To evaluate the recall of an index against the exact closest words:
+ * java SimHashIndex <rlabel file> <matrix_crs.mat file> <bands> <bits per band> <number of test words> <number of neighbours> [column weights file]
+ *
+ * @author akennedy
+ *
+ */
+public class SimHashIndex {
+	private static final Logger LOGGER = Logger.getLogger(SimHashIndex.class.getName());
+
+	//number of rows each thread signs at a time
+	private static final int ROW_STEP = 256;
+
+	private final LoadForRelatedness loader;
+	private final int bandCount;
+	private final int bandBits;
+	private final long seed;
+	//number of longs making up each signature, and the signatures of all rows one after another
+	private final int signatureLongs;
+	private final long[] signatures;
+	//for each band the band's bits and row of every signed row, as bits << 32 | row, in increasing order
+	private final long[][] tables;
+
+	/**
+	 * The main method builds an index and compares it with the exact closest words.
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if(args.length < 6){
+			LOGGER.info("To Run Program: java SimHashIndex <rlabel file> <matrix_crs.mat file> <bands> <bits per band> <number of test words> <number of neighbours> [column weights file]");
+		}
+		else{
+			LoadForRelatedness loader;
+			if(args.length > 6){
+				loader = new LoadForRelatedness(args[0], args[1], args[6]);
+			}
+			else{
+				loader = new LoadForRelatedness(args[0], args[1]);
+			}
+			SimHashIndex index = new SimHashIndex(loader, Integer.parseInt(args[2]), Integer.parseInt(args[3]), 1);
+			index.evaluate(Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+		}
+	}
+
+	/**
+	 * Constructor builds the index using one thread for each available processor.
+	 * There must be at least one band, and bits is the number of bits in each band,
+	 * from 1 to 32. The seed
+	 * picks the random hyperplanes, indexes built with the same seed are the same.
+	 *
+	 * @param relatedness
+	 * @param bands
+	 * @param bits
+	 * @param randomSeed
+	 */
+	public SimHashIndex(LoadForRelatedness relatedness, int bands, int bits, long randomSeed){
+		this(relatedness, bands, bits, randomSeed, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructor builds the index, signing the rows with the given number of threads.
+	 *
+	 * @param relatedness
+	 * @param bands
+	 * @param bits
+	 * @param randomSeed
+	 * @param threads
+	 */
+	public SimHashIndex(LoadForRelatedness relatedness, int bands, int bits, long randomSeed, int threads){
+		if(bands < 1){
+			throw new IllegalArgumentException("Band count must be at least 1: " + bands);
+		}
+		if(bits < 1 || bits > 32){
+			throw new IllegalArgumentException("Bits in a band must be from 1 to 32: " + bits);
+		}
+		loader = relatedness;
+		bandCount = bands;
+		bandBits = bits;
+		seed = randomSeed;
+		long longs = ((long)bandCount * bandBits + 63) / 64;
+		if(longs * loader.getRowCount() > Integer.MAX_VALUE - 8){
+			throw new IllegalArgumentException("Signatures of " + bands + " bands of " + bits + " bits are too large for " + loader.getRowCount() + " rows");
+		}
+		signatureLongs = (int)longs;
+		signatures = new long[loader.getRowCount() * signatureLongs];
+		signRows(threads);
+
+		tables = new long[bandCount][];
+		for(int band = 0; band < bandCount; band++){
+			long[] table = new long[loader.getRowCount()];
+			int count = 0;
+			for(int row = 0; row < loader.getRowCount(); row++){
+				if(loader.getRank(row) >= 0 && loader.getRowEnd(row) > loader.getRowStart(row)){
+					table[count] = getBand(row, band) << 32 | row;
+					count++;
+				}
+			}
+			tables[band] = Arrays.copyOf(table, count);
+			Arrays.sort(tables[band]);
+		}
+		LOGGER.info("Indexed " + loader.getRowCount() + " rows in " + bandCount + " bands of " + bandBits + " bits");
+	}
+
+	/**
+	 * Works out the signature of every row. The rows are shared out between the
+	 * threads a few at a time.
+	 *
+	 * @param threads
+	 */
+	private void signRows(int threads) {
+		ParallelRows.forRows(threads, 0, loader.getRowCount(), ROW_STEP, new ParallelRows.WorkerFactory<ParallelRows.Worker>(){
+			@Override
+			public ParallelRows.Worker create() {
+				final float[] sums = new float[signatureLongs * 64];
+				return new ParallelRows.Worker(){
+					@Override
+					public void run(int start, int end) {
+						for(int row = start; row < end; row++){
+							signRow(row, sums);
+						}
+					}
+				};
+			}
+		});
+	}
+
+	/**
+	 * Works out the signature of one row. For every hyperplane the weighted values of
+	 * the row are added or taken away depending on the side of the hyperplane each
+	 * column is on, and the bit is set if the total is above 0. sums is scratch space
+	 * with room for every bit.
+	 *
+	 * @param row
+	 * @param sums
+	 */
+	private void signRow(int row, float[] sums) {
+		Arrays.fill(sums, 0);
+		for(int i = loader.getRowStart(row); i < loader.getRowEnd(row); i++){
+			int column = loader.getColumnId(i);
+			float value = loader.getValue(i) * (float)Math.sqrt(loader.getSquaredWeight(column));
+			for(int word = 0; word < signatureLongs; word++){
+				long sides = RandomBits.mix(seed + column * RandomBits.GOLDEN_GAMMA + word);
+				for(int bit = 0; bit < 64; bit++){
+					sums[word * 64 + bit] += ((sides >>> bit) & 1) != 0 ? value : -value;
+				}
+			}
+		}
+		for(int word = 0; word < signatureLongs; word++){
+			long signature = 0;
+			for(int bit = 0; bit < 64; bit++){
+				if(sums[word * 64 + bit] > 0){
+					signature |= 1L << bit;
+				}
+			}
+			signatures[row * signatureLongs + word] = signature;
+		}
+	}
+
+	/**
+	 * Gets the bits of one band of a row's signature.
+	 *
+	 * @param row
+	 * @param band
+	 * @return
+	 */
+	private long getBand(int row, int band) {
+		long toReturn = 0;
+		int offset = band * bandBits;
+		for(int bit = 0; bit < bandBits; bit++){
+			int position = offset + bit;
+			long word = signatures[row * signatureLongs + position / 64];
+			toReturn |= ((word >>> (position % 64)) & 1L) << bit;
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Finds the approximate closest words to a word. The rows sharing a band with the
+	 * word are measured exactly and the best topX are returned in the same form as
+	 * LoadForRelatedness.getClosestWords. If the word is not found null is returned.
+	 *
+	 * @param word
+	 * @param topX
+	 * @return
+	 */
+	public WordDist[] getClosestWords(String word, int topX){
+		WordDist[] toReturn = null;
+		int id1 = loader.getRowId(word);
+		if(id1 >= 0){
+			ScoreHeap heap = new ScoreHeap(topX);
+			int[] candidates = getCandidates(id1);
+			for(int id2 : candidates){
+				heap.add(loader.getRank(id2), loader.getSimilarity(id1, id2));
+			}
+			toReturn = loader.getWordDists(heap, topX);
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Gets the rows other than id1 matching its signature in at least one band,
+	 * each listed once.
+	 *
+	 * @param id1
+	 * @return
+	 */
+	int[] getCandidates(int id1) {
+		int[] candidates = new int[64];
+		int count = 0;
+		for(int band = 0; band < bandCount; band++){
+			long key = getBand(id1, band) << 32;
+			long[] table = tables[band];
+			int position = Arrays.binarySearch(table, key);
+			if(position < 0){
+				position = -position - 1;
+			}
+			for( ; position < table.length && (table[position] & 0xFFFFFFFF00000000L) == key; position++){
+				int id2 = (int)table[position];
+				if(id2 != id1){
+					if(count == candidates.length){
+						candidates = Arrays.copyOf(candidates, candidates.length * 2);
+					}
+					candidates[count] = id2;
+					count++;
+				}
+			}
+		}
+		//remove the rows found in more than one band
+		Arrays.sort(candidates, 0, count);
+		int unique = 0;
+		for(int i = 0; i < count; i++){
+			if(unique == 0 || candidates[unique-1] != candidates[i]){
+				candidates[unique] = candidates[i];
+				unique++;
+			}
+		}
+		return Arrays.copyOf(candidates, unique);
+	}
+
+	/**
+	 * Compares the approximate closest words with the exact ones from LoadForRelatedness
+	 * for a number of test words spread evenly through the matrix. The recall, the share
+	 * of the exact closest words that are also found by the index, is logged along with
+	 * the time taken by each and the average number of candidates measured. The recall
+	 * is returned.
+	 *
+	 * @param testWords
+	 * @param topX
+	 * @return
+	 */
+	public double evaluate(int testWords, int topX) {
+		int words = 0;
+		for(int row = 0; row < loader.getRowCount(); row++){
+			if(loader.getRank(row) >= 0){
+				words++;
+			}
+		}
+		int step = Math.max(1, words / Math.max(testWords, 1));
+
+		long exactTime = 0;
+		long approximateTime = 0;
+		long found = 0;
+		long total = 0;
+		long candidateCount = 0;
+		int tested = 0;
+		for(int rank = 0; rank < words && tested < testWords; rank += step){
+			int row = loader.getRankedRow(rank);
+			String word = loader.getLabel(row);
+
+			long start = System.nanoTime();
+			WordDist[] exact = loader.getClosestWords(word, topX);
+			long middle = System.nanoTime();
+			WordDist[] approximate = getClosestWords(word, topX);
+			long end = System.nanoTime();
+			exactTime += middle - start;
+			approximateTime += end - middle;
+			candidateCount += getCandidates(row).length;
+
+			Set<String> exactWords = new HashSet<String>();
+			for(WordDist wordDist : exact){
+				if(wordDist.getWord().length() > 0){
+					exactWords.add(wordDist.getWord());
+				}
+			}
+			for(WordDist wordDist : approximate){
+				if(exactWords.contains(wordDist.getWord())){
+					found++;
+				}
+			}
+			total += exactWords.size();
+			tested++;
+		}
+
+		double recall = total == 0 ? 1 : (double)found / total;
+		LOGGER.info("Test words: " + tested);
+		LOGGER.info("Recall@" + topX + ": " + recall);
+		LOGGER.info("Average candidates: " + (double)candidateCount / Math.max(tested, 1));
+		LOGGER.info("Exact ms per word: " + exactTime / 1000000.0 / Math.max(tested, 1));
+		LOGGER.info("Approximate ms per word: " + approximateTime / 1000000.0 / Math.max(tested, 1));
+		return recall;
+	}
+}
@@ -3,9 +3,10 @@ package ca.uottawa.gents.weightmatrix;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -20,8 +21,17 @@ import java.util.logging.Logger;
 public class BinaryDist implements Distance {
 	private static final Logger LOGGER = Logger.getLogger(BinaryDist.class.getName());
 	
-	private final Hashtable<String, TreeSet<Integer>> wordLines;
+	//when one list of lines is this many times longer than the other it is searched rather than merged
+	private static final int GALLOP_RATIO = 8;
+	
+	//maps each word to its id, ids index the arrays below
+	private final Map<String, Integer> wordIds;
 	private final List<String> words;
+	//the sorted line numbers for each word id
+	private final int[][] wordLines;
+	//the ids of the words on each line
+	private final int[][] lineWords;
+	private final int lineCount;
 	
 	/**
 	 * Constructor takes in a file where each row contains a set of related words.
@@ -29,12 +39,17 @@ public class BinaryDist implements Distance {
 	 * with their row number and can be used to determine if two words appeared on 
 	 * the same row or not.
 	 * 
+	 * Each word is given an id and its line numbers are kept in a sorted array. The 
+	 * arrays are never changed after loading, so any number of threads can look up
+	 * words at once without locking.
+	 * 
 	 * @param fname
 	 */
 	public BinaryDist(String fname) {
-		wordLines = new Hashtable<String, TreeSet<Integer>>();
+		wordIds = new HashMap<String, Integer>();
 		words = new ArrayList<String>();
-		int lineCount = 0;
+		List<int[]> lines = new ArrayList<int[]>();
+		int[] lineSizes = new int[16];
 		try {
 			BufferedReader lineReader = new BufferedReader(new FileReader(fname));
 	         
@@ -47,46 +62,195 @@ public class BinaryDist implements Distance {
 				}
 	
 				else {
-					String[] words = line.split(" ");
-					for(String word : words){
-						addWord(word, lineCount);
+					String[] lineParts = line.split(" ");
+					int[] ids = new int[lineParts.length];
+					int idCount = 0;
+					for(String word : lineParts){
+						int id = addWord(word);
+						if(id == lineSizes.length){
+							lineSizes = Arrays.copyOf(lineSizes, lineSizes.length * 2);
+						}
+						if(Arrays.binarySearch(ids, 0, idCount, id) < 0){
+							ids[idCount] = id;
+							idCount++;
+							Arrays.sort(ids, 0, idCount);
+							lineSizes[id]++;
+						}
 					}
-					lineCount++;
+					lines.add(Arrays.copyOf(ids, idCount));
 				}
 			}
 	
 		} catch (Exception e) {
 			LOGGER.warning(e.getMessage());
 		}
+		
+		//invert the lines to find the sorted lines of each word
+		lineCount = lines.size();
+		lineWords = lines.toArray(new int[lineCount][]);
+		wordLines = new int[words.size()][];
+		for(int id = 0; id < wordLines.length; id++){
+			wordLines[id] = new int[lineSizes[id]];
+			lineSizes[id] = 0;
+		}
+		for(int line = 0; line < lineCount; line++){
+			for(int id : lineWords[line]){
+				wordLines[id][lineSizes[id]] = line;
+				lineSizes[id]++;
+			}
+		}
 	}
 
 	/**
-	 * Adds a new word and line number to the hashtable.
+	 * Returns the id of a word, giving it a new id if it has not been seen.
 	 * 
 	 * @param word
-	 * @param lineCount
+	 * @return
 	 */
-	private void addWord(String word, int lineCount) {
-		TreeSet<Integer> lineSet;
-		if(wordLines.containsKey(word)){
-			lineSet = wordLines.get(word);
-		}
-		else{
-			lineSet = new TreeSet<Integer>();
+	private int addWord(String word) {
+		Integer id = wordIds.get(word);
+		if(id == null){
+			id = words.size();
+			wordIds.put(word, id);
 			words.add(word);
 		}
-		lineSet.add(lineCount);
-		wordLines.put(word, lineSet);
+		return id;
 	}
 	
 	/**
-	 * Checks to see if a word exists in wordLines.
+	 * Checks to see if a word exists in the training data.
 	 * 
 	 * @param word
 	 * @return
 	 */
 	public boolean existsWord(String word){
-		return wordLines.containsKey(word);
+		return wordIds.containsKey(word);
+	}
+	
+	/**
+	 * Gets the id of a word, -1 if the word does not exist.
+	 * 
+	 * @param word
+	 * @return
+	 */
+	public int getWordId(String word){
+		Integer id = wordIds.get(word);
+		return id == null ? -1 : id;
+	}
+	
+	/**
+	 * Gets the word with the given id.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public String getWord(int id){
+		return words.get(id);
+	}
+	
+	/**
+	 * Gets the number of different words in the training data.
+	 * 
+	 * @return
+	 */
+	public int getWordCount(){
+		return words.size();
+	}
+
+	/**
+	 * Gets the numbers of the lines a word appears on in increasing order, an
+	 * empty array if the word does not exist. The returned array must not be changed.
+	 * 
+	 * @param word
+	 * @return
+	 */
+	public int[] getLineIds(String word){
+		int id = getWordId(word);
+		return id == -1 ? new int[0] : wordLines[id];
+	}
+	
+	/**
+	 * Gets the ids of the words on a line in increasing order. The returned array
+	 * must not be changed.
+	 * 
+	 * @param line
+	 * @return
+	 */
+	public int[] getLineWords(int line){
+		return lineWords[line];
+	}
+	
+	/**
+	 * Gets the number of lines in the training data.
+	 * 
+	 * @return
+	 */
+	public int getLineCount(){
+		return lineCount;
+	}
+	
+	/**
+	 * Gets the ids of all the words sharing at least one line with the word with 
+	 * the given id, in increasing order. The word itself is not included.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public int[] getRelatedIds(int id){
+		int size = 0;
+		for(int line : wordLines[id]){
+			size += lineWords[line].length;
+		}
+		int[] related = new int[size];
+		int count = 0;
+		for(int line : wordLines[id]){
+			for(int other : lineWords[line]){
+				if(other != id){
+					related[count] = other;
+					count++;
+				}
+			}
+		}
+		Arrays.sort(related, 0, count);
+		
+		//remove words found on more than one shared line
+		int unique = 0;
+		for(int i = 0; i < count; i++){
+			if(unique == 0 || related[unique-1] != related[i]){
+				related[unique] = related[i];
+				unique++;
+			}
+		}
+		return Arrays.copyOf(related, unique);
+	}
+	
+	/**
+	 * Gets the ids of all the words related to the given word, an empty array
+	 * if the word does not exist.
+	 * 
+	 * @param word
+	 * @return
+	 */
+	public int[] getRelatedIds(String word){
+		int id = getWordId(word);
+		return id == -1 ? new int[0] : getRelatedIds(id);
+	}
+	
+	/**
+	 * Calculates the similarity of many pairs of words at once, the similarity of 
+	 * words1[i] and words2[i] is found at position i of the returned array. The 
+	 * values are the same as those returned by getSimilarity.
+	 * 
+	 * @param words1
+	 * @param words2
+	 * @return
+	 */
+	public int[] getSimilarities(String[] words1, String[] words2){
+		int[] toReturn = new int[words1.length];
+		for(int i = 0; i < toReturn.length; i++){
+			toReturn[i] = getSimilarity(getWordId(words1[i]), getWordId(words2[i]));
+		}
+		return toReturn;
 	}
 
 	/**
@@ -97,17 +261,25 @@ public class BinaryDist implements Distance {
 	 */
 	@Override
 	public int getSimilarity(String word1, String word2) {
+		return getSimilarity(getWordId(word1), getWordId(word2));
+	}
+	
+	/**
+	 * Calculates similarity between two word ids in the same way as above,
+	 * where a missing word has an id of -1.
+	 * 
+	 * @param id1
+	 * @param id2
+	 * @return
+	 */
+	public int getSimilarity(int id1, int id2) {
 		int toReturn = 0;
-		boolean exist1 = existsWord(word1);
-		boolean exist2 = existsWord(word2);
+		boolean exist1 = id1 != -1;
+		boolean exist2 = id2 != -1;
 		
 		if(exist1 && exist2){
-			TreeSet<Integer> set1 = wordLines.get(word1);
-			TreeSet<Integer> set2 = wordLines.get(word2);
-			for(int id1 : set1){
-				if(set2.contains(id1)){
-					toReturn = 1;
-				}
+			if(shareLine(wordLines[id1], wordLines[id2])){
+				toReturn = 1;
 			}
 		}
 		else if(exist1 && !exist2){
@@ -121,6 +293,58 @@ public class BinaryDist implements Distance {
 		}
 		return toReturn;
 	}
+	
+	/**
+	 * Checks whether two sorted arrays of line numbers have a line in common,
+	 * stopping as soon as one is found. Arrays of similar length are merged,
+	 * otherwise each line of the shorter array is found in the longer one
+	 * by galloping ahead and then searching.
+	 * 
+	 * @param lines1
+	 * @param lines2
+	 * @return
+	 */
+	private static boolean shareLine(int[] lines1, int[] lines2) {
+		int[] shorter = lines1.length <= lines2.length ? lines1 : lines2;
+		int[] longer = lines1.length <= lines2.length ? lines2 : lines1;
+		boolean found = false;
+		if(longer.length > shorter.length * GALLOP_RATIO){
+			int low = 0;
+			for(int i = 0; i < shorter.length && !found && low < longer.length; i++){
+				int target = shorter[i];
+				int step = 1;
+				int high = low;
+				while(high < longer.length && longer[high] < target){
+					low = high + 1;
+					high += step;
+					step *= 2;
+				}
+				int position = Arrays.binarySearch(longer, low, Math.min(high + 1, longer.length), target);
+				if(position >= 0){
+					found = true;
+				}
+				else{
+					low = -position - 1;
+				}
+			}
+		}
+		else{
+			int i = 0;
+			int j = 0;
+			while(i < shorter.length && j < longer.length && !found){
+				if(shorter[i] < longer[j]){
+					i++;
+				}
+				else if(shorter[i] > longer[j]){
+					j++;
+				}
+				else{
+					found = true;
+				}
+			}
+		}
+		return found;
+	}
 
 	/**
 	 * Calculates distance when the POS of the two words is included, does not really
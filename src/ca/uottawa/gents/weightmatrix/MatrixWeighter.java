@@ -30,6 +30,43 @@ public final class MatrixWeighter {
 	public static double getAssociation(double truePos, double falseNeg, double falsePos, double trueNeg, String measureType){
 		double[][] observed = formatInputs(truePos, falseNeg, falsePos, trueNeg);
 		double[][] expected = generateExpectedFromObserved(observed);
+		return getAssociation(observed, expected, measureType);
+	}
+	
+	/**
+	 * Calculates several measures of association from the same 2x2 confusion matrix. The
+	 * observed and expected matrices are only built once and shared between all of the
+	 * measures. The returned array holds one value for each entry in measureTypes, in the
+	 * same order. As with getAssociation, values less than zero are set to zero.
+	 * 
+	 * @param truePos
+	 * @param falseNeg
+	 * @param falsePos
+	 * @param trueNeg
+	 * @param measureTypes
+	 * @return
+	 */
+	public static double[] getAssociations(double truePos, double falseNeg, double falsePos, double trueNeg, String[] measureTypes){
+		double[][] observed = formatInputs(truePos, falseNeg, falsePos, trueNeg);
+		double[][] expected = generateExpectedFromObserved(observed);
+		double[] toReturn = new double[measureTypes.length];
+		for(int i = 0; i < measureTypes.length; i++){
+			toReturn[i] = getAssociation(observed, expected, measureTypes[i]);
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Calculates the named measure of association from already built observed and
+	 * expected matrices. If the resulting similarity is less than zero then it is set 
+	 * to zero and returned.
+	 * 
+	 * @param observed
+	 * @param expected
+	 * @param measureType
+	 * @return
+	 */
+	private static double getAssociation(double[][] observed, double[][] expected, String measureType){
 		double toReturn = 0;
 		if("Tscore".equals(measureType)){
 			toReturn = ttest(observed, expected);
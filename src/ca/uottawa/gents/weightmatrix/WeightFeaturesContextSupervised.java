@@ -4,13 +4,19 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import ca.uottawa.gents.matrix.ParallelRows;
+import ca.uottawa.gents.matrix.RandomBits;
+import ca.uottawa.gents.matrix.SparseMatrix;
+
 /**
  * This class performs supervised Matrix weighting. Much like WeightFeaturesUnsupervised this program takes
  * in an already constructed matrix and produces one with a different weight. This is based off of the work
@@ -29,10 +35,30 @@ import java.util.logging.Logger;
  * weights is not essential for this program, but may be of some interest to those running it.
  * 
  * To Run Program: 
- * java WeightFeaturesUnsupervised <PMI|LL|Dice|Tscore|Zscore|Chi2> <training data> <row_features.csv file> <row matrix file> <column matrix file>
+ * java WeightFeaturesUnsupervised <PMI|LL|Dice|Tscore|Zscore|Chi2> <training data> <row_features.csv file> <row matrix file> <column matrix file> [-weightsOnly]
  * 
  * Three new files will be created, new row and column matrix files and another file indicating the weights of the 
- * different contexts.
+ * different contexts. If -weightsOnly is given only the file of column weights is written, it can be loaded along
+ * with the original matrix by LoadForRelatedness which applies the weights when measuring relatedness.
+ * 
+ * For cross validation a list of held out word files can be given after -folds:
+ * java WeightFeaturesContextSupervised <PMI|LL|Dice|Tscore|Zscore|Chi2> <training data> <row_features.csv file> <row matrix file> <column matrix file> -folds <held out words 1> ... <held out words k>
+ * 
+ * One file of column weights, columns_context_TYPE_foldI.txt, is written for each held out set as if its words had 
+ * been removed with loadExemptWords. All the folds are found in a single pass over the columns.
+ * 
+ * Along with the column weights the counts found for every column are saved to columns_context_TYPE_counts.txt.
+ * When a few groups of the training data are changed the weights can be updated from these counts:
+ * java WeightFeaturesContextSupervised <PMI|LL|Dice|Tscore|Zscore|Chi2> <new training data> <row_features.csv file> <row matrix file> <column matrix file> -update <previous training data>
+ * 
+ * Only the columns containing a word whose related words changed are counted again. The new weights and counts
+ * are written over the old ones and the matrix files are left as they are, the weights can be applied by 
+ * LoadForRelatedness. The counts file records a checksum of the training data it was counted with, if it does
+ * not match the previous training data given every column is counted again.
+ * 
+ * The same steps can be run on a matrix held in memory by using the constructor and the loadRows, 
+ * loadColumnFeatures and weightRowFeatures methods that take a SparseMatrix. Nothing is written
+ * to disk unless an output file for the column weights is given.
  * 
  * @author akennedy
  *
@@ -41,9 +67,9 @@ public class WeightFeaturesContextSupervised {
 	private static final Logger LOGGER = Logger.getLogger(WeightFeaturesContextSupervised.class.getName());
 	protected Set<String> stopWords;
 	protected List<String> words;
-	protected List<Double> wordsCount;
-	protected List<Boolean> goodWords;
-	protected Set<Integer>[] relatedPairs;
+	protected double[] wordsCount;
+	protected boolean[] goodWords;
+	protected int[][] relatedPairs;
 
 	protected BinaryDist binDst;
 	protected double[] weights;
@@ -51,6 +77,12 @@ public class WeightFeaturesContextSupervised {
 	
 	protected String type;
 	
+	//number of threads counting columns and the number of columns each takes at a time
+	protected int threadCount = Runtime.getRuntime().availableProcessors();
+	private static final int COLUMN_BLOCK = 64;
+	//number of columns read at a time from a column matrix file
+	private static final int STREAM_COLUMNS = 16384;
+	
 	/**
 	 * The main function reads in the arguments and then creates a new WeightFeaturesSuprvised
 	 * class.
@@ -58,8 +90,10 @@ public class WeightFeaturesContextSupervised {
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		if(args.length < 5){
-			LOGGER.info("To Run Program: java WeightFeaturesContextSupervised <PMI|LL|Dice|Tscore|Zscore|Chi2> <training data> <row_features.csv file> <row matrix file> <column matrix file>");
+		//-folds and -update need their files, without them a full weighting must not be run in their place
+		boolean missingFiles = args.length == 6 && ("-folds".equals(args[5]) || "-update".equals(args[5]));
+		if(args.length < 5 || missingFiles){
+			LOGGER.info("To Run Program: java WeightFeaturesContextSupervised <PMI|LL|Dice|Tscore|Zscore|Chi2> <training data> <row_features.csv file> <row matrix file> <column matrix file> [-weightsOnly | -update <previous training data> | -folds <held out words 1> ... <held out words k>]");
 		}
 		else{
 			String association = args[0]; 
@@ -68,6 +102,10 @@ public class WeightFeaturesContextSupervised {
 			String rowMatrixFile = args[3]; 
 			String colMatrixFile = args[4];
 			String outputColWeights = args[4].substring(0, args[4].lastIndexOf("/"))+"/columns_context_"+association+".txt";
+			String outputColCounts = args[4].substring(0, args[4].lastIndexOf("/"))+"/columns_context_"+association+"_counts.txt";
+			boolean weightsOnly = args.length > 5 && "-weightsOnly".equals(args[5]);
+			boolean folds = args.length > 6 && "-folds".equals(args[5]);
+			boolean update = args.length > 6 && "-update".equals(args[5]);
 			
 			//names of re-weighted files
 			String newRowMatrixFile = rowMatrixFile+".c-"+association;
@@ -81,15 +119,51 @@ public class WeightFeaturesContextSupervised {
 			//assembles training data into a hashtable, only words found in the matrix are used.
 			wfcs.colleceRelatedPairs();
 	
-			//loads columns and calculates the weights for each feature
-			wfcs.loadColumnFeatures(colMatrixFile, outputColWeights);
+			if(folds){
+				//loads columns and calculates the weights for each feature once for every fold
+				List<Set<String>> heldOut = new ArrayList<Set<String>>();
+				String[] outputFoldWeights = new String[args.length - 6];
+				for(int i = 6; i < args.length; i++){
+					heldOut.add(readWords(args[i]));
+					outputFoldWeights[i-6] = outputColWeights.substring(0, outputColWeights.lastIndexOf(".")) + "_fold" + (i-5) + ".txt";
+				}
+				SparseMatrix columns = SparseMatrix.load(colMatrixFile, true);
+				if(columns == null){
+					LOGGER.warning("Could not load " + colMatrixFile + ", no folds are weighted");
+				}
+				else{
+					wfcs.loadColumnFeatures(columns, heldOut, outputFoldWeights);
+				}
+				return;
+			}
+			
+			if(update){
+				//finds the related pairs of the previous training data and counts only the columns that changed
+				WeightFeaturesContextSupervised previous = new WeightFeaturesContextSupervised(args[6], rowMatrixFile, association);
+				previous.loadRows(rowFeaturesFile);
+				previous.colleceRelatedPairs();
+				SparseMatrix rows = SparseMatrix.load(rowMatrixFile, false);
+				SparseMatrix columns = rows == null ? null : SparseMatrix.load(colMatrixFile, true);
+				if(rows == null || columns == null){
+					LOGGER.warning("Could not load " + (rows == null ? rowMatrixFile : colMatrixFile) + ", the weights are not updated");
+				}
+				else{
+					wfcs.updateColumnFeatures(previous, rows, columns, outputColCounts, outputColWeights);
+				}
+				return;
+			}
 			
-			//creates new row matrix using these features
-			wfcs.weightRowFeatures(rowMatrixFile, newRowMatrixFile);
+			//loads columns and calculates the weights for each feature
+			wfcs.loadColumnFeatures(colMatrixFile, outputColWeights, outputColCounts);
 			
-			//translates the row matrix into a column matrix using the function in WeightFeaturesUnsupervised
-			WeightFeaturesUnsupervised wfu = new WeightFeaturesUnsupervised();
-			wfu.rowsToColumns(newRowMatrixFile, newColMatrixFile);
+			if(!weightsOnly){
+				//creates new row matrix using these features
+				wfcs.weightRowFeatures(rowMatrixFile, newRowMatrixFile);
+				
+				//translates the row matrix into a column matrix using the function in WeightFeaturesUnsupervised
+				WeightFeaturesUnsupervised wfu = new WeightFeaturesUnsupervised();
+				wfu.rowsToColumns(newRowMatrixFile, newColMatrixFile);
+			}
 		}
 		
 	}
@@ -109,8 +183,8 @@ public class WeightFeaturesContextSupervised {
 		legitWords = 0;
 		stopWords = new HashSet<String>();
 		words = new ArrayList<String>();
-		wordsCount = new ArrayList<Double>();
-		goodWords = new ArrayList<Boolean>();
+		wordsCount = new double[0];
+		goodWords = new boolean[0];
 		
 		binDst = new BinaryDist(trainingData);
 		
@@ -119,6 +193,28 @@ public class WeightFeaturesContextSupervised {
 		type = association;
 		
 	}
+	
+	/**
+	 * This constructor works like the one above but takes the row matrix
+	 * from memory rather than from a file.
+	 * 
+	 * @param trainingData
+	 * @param matrix
+	 * @param association
+	 */
+	public WeightFeaturesContextSupervised(String trainingData, SparseMatrix matrix, String association){
+		legitWords = 0;
+		stopWords = new HashSet<String>();
+		words = new ArrayList<String>();
+		wordsCount = new double[0];
+		goodWords = new boolean[0];
+		
+		binDst = new BinaryDist(trainingData);
+		
+		initializeWeights(matrix.getColumnCount());
+		
+		type = association;
+	}
 
 	/**
 	 * This method initializes the weights for each column in the
@@ -136,16 +232,23 @@ public class WeightFeaturesContextSupervised {
 		
 			String[] sizes = firstLine.split("\\s+");
 			
-			int columnCount = Integer.parseInt(sizes[1]); 
-	
-			weights = new double[columnCount]; 
-			for(int i = 0; i < weights.length; i++){
-				weights[i] = 1;
-			}
+			initializeWeights(Integer.parseInt(sizes[1])); 
 		} catch (Exception e) {
 			LOGGER.warning(e.getMessage());
 		}
 	}
+	
+	/**
+	 * Initializes the weights of the given number of columns to 1.
+	 * 
+	 * @param columnCount
+	 */
+	public final void initializeWeights(int columnCount){
+		weights = new double[columnCount]; 
+		for(int i = 0; i < weights.length; i++){
+			weights[i] = 1;
+		}
+	}
 
 
 
@@ -194,6 +297,34 @@ public class WeightFeaturesContextSupervised {
 		}
 	}
 
+	/**
+	 * Multiplies every entry of a matrix held in memory by the weight of its
+	 * column and returns the new matrix. Extremely small values are left out
+	 * just as they are by the file based version.
+	 * 
+	 * @param matrix
+	 * @return
+	 */
+	public SparseMatrix weightRowFeatures(SparseMatrix matrix) {
+		int[] pointers = new int[matrix.getRowCount()+1];
+		int[] ids = new int[matrix.getEntryCount()];
+		double[] vals = new double[matrix.getEntryCount()];
+		int count = 0;
+		for(int row = 0; row < matrix.getRowCount(); row++){
+			for(int i = matrix.getRowStart(row); i < matrix.getRowEnd(row); i++){
+				double value = matrix.getValue(i) * weights[matrix.getColumnId(i)];
+				if(value > 0.00000000001){ // do not keep extremely small values
+					ids[count] = matrix.getColumnId(i);
+					vals[count] = value;
+					count++;
+				}
+			}
+			pointers[row+1] = count;
+		}
+		return new SparseMatrix(matrix.getRowCount(), matrix.getColumnCount(), pointers, 
+				Arrays.copyOf(ids, count), Arrays.copyOf(vals, count));
+	}
+
 	/**
 	 * This function does most of the work. It reads in the column matrix and then
 	 * finds weights for each entry in the column. The column matrix is the first
@@ -211,86 +342,529 @@ public class WeightFeaturesContextSupervised {
 	 * @param outputFile
 	 */
 	public void loadColumnFeatures(String fname, String outputFile) {
-		int totalFeatureCt = 0;
-		int featureNumber = 0;
-		int linesCount = 0;
+		loadColumnFeatures(fname, outputFile, null);
+	}
+	
+	/**
+	 * Finds the weight of every column as above and also saves the counts of each
+	 * column to countsFile so that the weights can later be brought up to date
+	 * with updateColumnFeatures. If countsFile is null the counts are not saved.
+	 * 
+	 * @param fname
+	 * @param outputFile
+	 * @param countsFile
+	 */
+	public void loadColumnFeatures(String fname, String outputFile, String countsFile) {
+		scoreFeatureCounts(getAllFeatureCounts(fname), outputFile, countsFile);
+	}
+	
+	/**
+	 * Finds the weight of every column of a column matrix held in memory, see
+	 * above. If outputFile is null the column weights are not written out.
+	 * 
+	 * @param columns
+	 * @param outputFile
+	 */
+	public void loadColumnFeatures(SparseMatrix columns, String outputFile) {
+		loadColumnFeatures(columns, outputFile, null);
+	}
+	
+	/**
+	 * Finds the weight of every column of a column matrix held in memory. If 
+	 * countsFile is not null the counts of each column are written to it.
+	 * 
+	 * @param columns
+	 * @param outputFile
+	 * @param countsFile
+	 */
+	public void loadColumnFeatures(SparseMatrix columns, String outputFile, String countsFile) {
+		scoreFeatureCounts(getAllFeatureCounts(columns), outputFile, countsFile);
+	}
+	
+	/**
+	 * Scores and normalizes the columns from their counts, and writes the counts
+	 * to countsFile if it is not null.
+	 * 
+	 * @param allFeatureCounts
+	 * @param outputFile
+	 * @param countsFile
+	 */
+	private void scoreFeatureCounts(double[][] allFeatureCounts, String outputFile, String countsFile) {
+		boolean[] goodWeights = new boolean[weights.length];
+		scoreColumns(allFeatureCounts, goodWeights);
+		normalizeWeights(goodWeights, outputFile);
+		if(countsFile != null){
+			writeFeatureCounts(allFeatureCounts, countsFile);
+		}
+	}
+	
+	/**
+	 * Brings the column weights up to date after the training data has changed. previous
+	 * must hold the same rows with the related pairs of the old training data, and this
+	 * object those of the new training data. The counts saved in countsFile by the last
+	 * run are read back and only the columns containing a row whose related words have
+	 * changed are counted again, these are found from the row matrix. The count of pairs 
+	 * not sharing a column depends on the total of all training words so it is worked 
+	 * out again for every column from the saved counts, which is cheap. The columns are
+	 * then scored and normalized as usual, and the new counts replace the old ones.
+	 * If the saved counts cannot be read, were found for a different number of columns
+	 * or were not found with the training data of previous every column is counted again,
+	 * so that counts from other training data are never partly reused.
+	 * 
+	 * @param previous
+	 * @param rows
+	 * @param columns
+	 * @param countsFile
+	 * @param outputFile
+	 */
+	public void updateColumnFeatures(WeightFeaturesContextSupervised previous, SparseMatrix rows, SparseMatrix columns, String countsFile, String outputFile) {
+		int[] changedRows = findChangedRows(previous);
+		double[][] allFeatureCounts = readFeatureCounts(countsFile, columns.getRowCount(), previous.getTrainingChecksum());
+		if(allFeatureCounts == null){
+			LOGGER.warning("Saved counts can not be used, counting every column again");
+			allFeatureCounts = getAllFeatureCounts(columns);
+			changedRows = new int[0];
+		}
+		
+		//columns holding a changed row must be counted again
+		boolean[] changedColumns = new boolean[columns.getRowCount()];
+		for(int row : changedRows){
+			for(int i = rows.getRowStart(row); i < rows.getRowEnd(row); i++){
+				changedColumns[rows.getColumnId(i)] = true;
+			}
+		}
+		
+		double[] columnValues = new double[words.size()];
+		int[] members = new int[words.size()];
+		int changedCount = 0;
+		for(int featureNumber = 0; featureNumber < allFeatureCounts.length; featureNumber++){
+			if(changedColumns[featureNumber]){
+				allFeatureCounts[featureNumber] = getFeatureCounts(columns, featureNumber, columnValues, members);
+				changedCount++;
+			}
+			else if(allFeatureCounts[featureNumber] != null){
+				double[] featureCounts = allFeatureCounts[featureNumber];
+				featureCounts[3] = featureCounts[4] * (legitWords - featureCounts[5]);
+			}
+		}
+		LOGGER.info("Changed rows: " + changedRows.length);
+		LOGGER.info("Features counted again: " + changedCount);
+		
+		initializeWeights(weights.length);
 		boolean[] goodWeights = new boolean[weights.length];
+		scoreColumns(allFeatureCounts, goodWeights);
+		normalizeWeights(goodWeights, outputFile);
+		writeFeatureCounts(allFeatureCounts, countsFile);
+	}
+	
+	/**
+	 * Finds a checksum of the training data as it is used to count the columns: the
+	 * rows, which of them are training words, their counts and their related words.
+	 * Two objects with the same checksum count every column the same way.
+	 * 
+	 * @return
+	 */
+	public long getTrainingChecksum() {
+		long toReturn = RandomBits.mix(words.size());
+		for(int i = 0; i < words.size(); i++){
+			toReturn = RandomBits.mix(toReturn + words.get(i).hashCode());
+			toReturn = RandomBits.mix(toReturn + (goodWords[i] ? 1 : 2));
+			toReturn = RandomBits.mix(toReturn + Double.doubleToLongBits(wordsCount[i]));
+			if(relatedPairs[i] != null){
+				for(int related : relatedPairs[i]){
+					toReturn = RandomBits.mix(toReturn + related);
+				}
+			}
+			toReturn = RandomBits.mix(toReturn + RandomBits.GOLDEN_GAMMA);
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Finds the rows that are used for training differently here than in previous. A row
+	 * has changed if it is a training word in one but not the other, or if its related
+	 * words are not the same. Both must have loaded the same rows, if they have not 
+	 * every row is returned.
+	 * 
+	 * @param previous
+	 * @return
+	 */
+	public int[] findChangedRows(WeightFeaturesContextSupervised previous) {
+		int[] changed = new int[words.size()];
+		int changedCount = 0;
+		if(previous.words.size() != words.size()){
+			LOGGER.warning("Rows do not match: " + previous.words.size() + " " + words.size());
+			for(int i = 0; i < words.size(); i++){
+				changed[i] = i;
+			}
+			return changed;
+		}
+		for(int i = 0; i < words.size(); i++){
+			if(goodWords[i] != previous.goodWords[i] || !Arrays.equals(relatedPairs[i], previous.relatedPairs[i])){
+				changed[changedCount] = i;
+				changedCount++;
+			}
+		}
+		return Arrays.copyOf(changed, changedCount);
+	}
+	
+	/**
+	 * Writes the counts of every column to a file. The first line holds the number
+	 * of columns and the checksum of the training data from getTrainingChecksum, 
+	 * then there is one line per column holding the column number followed
+	 * by the counts returned by getFeatureCounts, columns with too few training words 
+	 * have only their number.
+	 * 
+	 * @param allFeatureCounts
+	 * @param fname
+	 */
+	protected void writeFeatureCounts(double[][] allFeatureCounts, String fname) {
+		try{
+			BufferedWriter countsWriter = new BufferedWriter(new FileWriter(fname));
+			countsWriter.write(allFeatureCounts.length + " " + getTrainingChecksum() + "\n");
+			for(int i = 0; i < allFeatureCounts.length; i++){
+				countsWriter.write(Integer.toString(i));
+				if(allFeatureCounts[i] != null){
+					for(double count : allFeatureCounts[i]){
+						countsWriter.write(" " + count);
+					}
+				}
+				countsWriter.write("\n");
+			}
+			countsWriter.close();
+		}
+		catch(Exception e){
+			LOGGER.warning(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Reads back the counts written by writeFeatureCounts. Returns null if the file
+	 * can not be read, was written for a different number of columns than columnCount
+	 * or for training data without the given checksum, or does not hold a line for 
+	 * every column.
+	 * 
+	 * @param fname
+	 * @param columnCount
+	 * @param checksum
+	 * @return
+	 */
+	protected double[][] readFeatureCounts(String fname, int columnCount, long checksum) {
+		double[][] allFeatureCounts = new double[columnCount][];
+		int column = 0;
 		try {
-			BufferedReader matrixReader = new BufferedReader(new FileReader(fname));
-			matrixReader.readLine(); // get first line
-			
-			//read file
-			for ( ; ; ) {
-				String line = matrixReader.readLine();
+			BufferedReader countsReader = new BufferedReader(new FileReader(fname));
+			String header = countsReader.readLine();
+			String[] sizes = header == null ? new String[0] : header.trim().split(" ");
+			if(sizes.length != 2 || Integer.parseInt(sizes[0]) != columnCount){
+				LOGGER.warning("Counts in " + fname + " are not for " + columnCount + " columns");
+				column = -1;
+			}
+			else if(Long.parseLong(sizes[1]) != checksum){
+				LOGGER.warning("Counts in " + fname + " were not found with the previous training data");
+				column = -1;
+			}
+	         
+			while (column >= 0) {
+				String line = countsReader.readLine();
 	
 				if (line == null) {
-					matrixReader.close();
 					break;
 				}
 	
 				else {
 					String[] parts = line.split(" ");
-					double tfWordsInContext = 0;
-					double ctWordsInContext = 0;
-					int uniqueCount = 0;
-					
-					//place the words from a context into a Hashtable
-					Hashtable<Integer, Double> wordsInCurrFeat = new Hashtable<Integer, Double>();
-					for(int i = 0; i < parts.length; i+=2){
-						if(parts.length > 1 && goodWords.get(Integer.parseInt(parts[i]))){
-							wordsInCurrFeat.put(Integer.parseInt(parts[i]), Double.parseDouble(parts[i+1]));
-							ctWordsInContext += Double.parseDouble(parts[i+1]);
-							tfWordsInContext += wordsCount.get(Integer.parseInt(parts[i]));
-							uniqueCount++;
-						}
-					}
-					//if there are more than 2 words that can be used for training count tp, fp, fn and tn.
-					if(uniqueCount >= 2){
-						double[] pairCts = getPairCounts(wordsInCurrFeat); // counts found pairs sharing the same feautre
-						double relShareFeat = pairCts[0]; // tp
-						double unrelShareFeat = pairCts[1]; // fp
-						double relNotShareFeat = countRelatedPairsInDifferentContexts(wordsInCurrFeat); // counts all pairs sharing the same feature
-						
-						totalFeatureCt ++;
-
-						double notShareFeat = ctWordsInContext * (legitWords-tfWordsInContext); 
-						
-						double truePos = relShareFeat;
-						double falsePos = unrelShareFeat;
-						double falseNeg = relNotShareFeat;
-						double trueNeg = notShareFeat - falseNeg; // pairs unrelated & not sharing feature
-						
-						//find association
-						double value = MatrixWeighter.getAssociation(truePos, falsePos, falseNeg, trueNeg, type);
-						
-						//check for a few common errors
-						//shouldn't matter now but factored in during debugging.
-						//if(Double.isNaN(value) || Double.isInfinite(value) || trueNeg < 0){
-							LOGGER.severe("Error at feature: "+featureNumber +"\n" +(long)truePos + " " + (long)falsePos + "\n" + (long)falseNeg + " " + (long)trueNeg + "\n" + value);
-						//}
-						
-						//set feature weight
-						weights[featureNumber] = value;
-						goodWeights[featureNumber] = true;
+					//every column must be there in order with either no counts or all of them
+					if(column == columnCount || Integer.parseInt(parts[0]) != column || (parts.length != 1 && parts.length != 7)){
+						LOGGER.warning("Bad line in " + fname + ": " + line);
+						column = -1;
 					}
 					else{
-						goodWeights[featureNumber] = false;
+						if(parts.length > 1){
+							double[] featureCounts = new double[parts.length-1];
+							for(int i = 1; i < parts.length; i++){
+								featureCounts[i-1] = Double.parseDouble(parts[i]);
+							}
+							allFeatureCounts[column] = featureCounts;
+						}
+						column++;
 					}
-					featureNumber++;
-				}
-
-				//track progress
-				linesCount++;
-				if(linesCount % 1000 == 0){
-					LOGGER.info("Features processed: " + linesCount);
 				}
 			}
+			countsReader.close();
 	
 		} catch (Exception e) {
-			LOGGER.warning(e.getMessage());
+	    	 LOGGER.warning(e.getMessage());
+	    	 column = -1;
+		}
+		return column == columnCount ? allFeatureCounts : null;
+	}
+	
+	/**
+	 * Finds the column weights for several folds of cross validation at once. Each set in
+	 * heldOut is a fold, its words are left out of training just as if they were loaded
+	 * with loadExemptWords. The column matrix is only gone through once with each fold
+	 * keeping its own counts, and the weights of fold i are written to outputFiles[i]
+	 * if it is not null. Returns the normalized column weights of each fold, the weights
+	 * of this object are left as those of the last fold.
+	 * 
+	 * loadRows and colleceRelatedPairs must be called first without any exempt words.
+	 * 
+	 * @param columns
+	 * @param heldOut
+	 * @param outputFiles
+	 * @return
+	 */
+	public double[][] loadColumnFeatures(SparseMatrix columns, List<Set<String>> heldOut, String[] outputFiles) {
+		int folds = heldOut.size();
+		boolean[][] excluded = new boolean[folds][words.size()];
+		long[] foldLegitWords = new long[folds];
+		for(int fold = 0; fold < folds; fold++){
+			foldLegitWords[fold] = legitWords;
+			for(int i = 0; i < words.size(); i++){
+				if(heldOut.get(fold).contains(words.get(i))){
+					excluded[fold][i] = true;
+					if(goodWords[i]){
+						foldLegitWords[fold] -= wordsCount[i];
+					}
+				}
+			}
+		}
+		
+		double[][][] allFeatureCounts = getAllFeatureCounts(columns, excluded, foldLegitWords);
+		double[][] foldWeights = new double[folds][];
+		for(int fold = 0; fold < folds; fold++){
+			LOGGER.info("Fold " + (fold+1));
+			initializeWeights(weights.length);
+			boolean[] goodWeights = new boolean[weights.length];
+			scoreColumns(allFeatureCounts[fold], goodWeights);
+			normalizeWeights(goodWeights, outputFiles == null ? null : outputFiles[fold]);
+			foldWeights[fold] = Arrays.copyOf(weights, weights.length);
+		}
+		return foldWeights;
+	}
+	
+	/**
+	 * Sets the weight of every column from the counts of tp, fp, fn and tn found
+	 * by getFeatureCounts. Columns that could be weighted are marked in goodWeights.
+	 * 
+	 * @param allFeatureCounts
+	 * @param goodWeights
+	 */
+	private void scoreColumns(double[][] allFeatureCounts, boolean[] goodWeights) {
+		int totalFeatureCt = 0;
+		for(int featureNumber = 0; featureNumber < allFeatureCounts.length; featureNumber++){
+			double[] featureCounts = allFeatureCounts[featureNumber];
+			//if there are more than 2 words that can be used for training count tp, fp, fn and tn.
+			if(featureCounts != null){
+				totalFeatureCt ++;
+
+				double truePos = featureCounts[0];
+				double falsePos = featureCounts[1];
+				double falseNeg = featureCounts[2];
+				double trueNeg = featureCounts[3] - falseNeg; // pairs unrelated & not sharing feature
+				
+				//find association
+				double value = MatrixWeighter.getAssociation(truePos, falsePos, falseNeg, trueNeg, type);
+				
+				//check for a few common errors
+				//shouldn't matter now but factored in during debugging.
+				//if(Double.isNaN(value) || Double.isInfinite(value) || trueNeg < 0){
+					LOGGER.severe("Error at feature: "+featureNumber +"\n" +(long)truePos + " " + (long)falsePos + "\n" + (long)falseNeg + " " + (long)trueNeg + "\n" + value);
+				//}
+				
+				//set feature weight
+				weights[featureNumber] = value;
+				goodWeights[featureNumber] = true;
+			}
+			else{
+				goodWeights[featureNumber] = false;
+			}
 		}
 		LOGGER.info("Features included: " + totalFeatureCt);
+	}
+	
+	/**
+	 * Runs getFeatureCounts on every column of the column matrix, returning the
+	 * counts of each column in the same order as the columns. The columns are
+	 * shared out in small blocks between several threads, each with its own 
+	 * scratch arrays. Each column is counted on its own so the result is the 
+	 * same however many threads are used.
+	 * 
+	 * @param columns
+	 * @return
+	 */
+	protected double[][] getAllFeatureCounts(SparseMatrix columns) {
+		return getAllFeatureCounts(columns, new boolean[][]{null}, new long[]{legitWords})[0];
+	}
+	
+	/**
+	 * Runs getFeatureCounts on every column of a column matrix file. The file is
+	 * read STREAM_COLUMNS columns at a time and each block is counted before the
+	 * next is read, so only one block of the matrix is ever held in memory.
+	 * 
+	 * @param fname
+	 * @return
+	 */
+	protected double[][] getAllFeatureCounts(String fname) {
+		double[][] allFeatureCounts = null;
+		SparseMatrix.Reader columnReader = null;
+		try{
+			columnReader = new SparseMatrix.Reader(fname, true);
+			allFeatureCounts = new double[columnReader.getRowCount()][];
+			while(columnReader.getRowsRead() < allFeatureCounts.length){
+				int start = columnReader.getRowsRead();
+				double[][] blockCounts = getAllFeatureCounts(columnReader.read(STREAM_COLUMNS));
+				System.arraycopy(blockCounts, 0, allFeatureCounts, start, blockCounts.length);
+				LOGGER.info("Columns read: " + columnReader.getRowsRead());
+			}
+		}
+		catch(IOException e){
+			//without every column the weights can not be found
+			throw new IllegalStateException("Could not read column matrix " + fname + ": " + e.getMessage(), e);
+		}
+		finally{
+			if(columnReader != null){
+				columnReader.close();
+			}
+		}
+		return allFeatureCounts;
+	}
+	
+	/**
+	 * Runs getFeatureCounts on every column for several sets of excluded words at 
+	 * once, as is needed for cross validation. The counts for column i with the 
+	 * words in excluded[f] left out are placed in position [f][i] of the returned
+	 * array. A set of excluded words may be null if no words are left out, 
+	 * legit[f] is the total count of the training words that are not excluded.
+	 * 
+	 * @param columns
+	 * @param excluded
+	 * @param legit
+	 * @return
+	 */
+	protected double[][][] getAllFeatureCounts(final SparseMatrix columns, final boolean[][] excluded, final long[] legit) {
+		final double[][][] allFeatureCounts = new double[excluded.length][columns.getRowCount()][];
+		final AtomicInteger processed = new AtomicInteger(0);
+		
+		//a failed worker is thrown again, the columns it never reached would look like columns without training words
+		ParallelRows.forRows(threadCount, 0, columns.getRowCount(), COLUMN_BLOCK, new ParallelRows.WorkerFactory<ParallelRows.Worker>(){
+			@Override
+			public ParallelRows.Worker create() {
+				final double[] columnValues = new double[words.size()];
+				final int[] members = new int[words.size()];
+				return new ParallelRows.Worker(){
+					@Override
+					public void run(int start, int end) {
+						for(int featureNumber = start; featureNumber < end; featureNumber++){
+							for(int fold = 0; fold < excluded.length; fold++){
+								allFeatureCounts[fold][featureNumber] = getFeatureCounts(columns, featureNumber, columnValues, members, excluded[fold], legit[fold]);
+							}
+							
+							//track progress
+							int count = processed.incrementAndGet();
+							if(count % 1000 == 0){
+								LOGGER.info("Features processed: " + count);
+							}
+						}
+					}
+				};
+			}
+		});
+		return allFeatureCounts;
+	}
+	
+	/**
+	 * Sets the number of threads used to count the columns, by default one 
+	 * for each available processor. There must be at least one.
+	 * 
+	 * @param threads
+	 */
+	public void setThreadCount(int threads) {
+		if(threads < 1){
+			throw new IllegalArgumentException("Thread count must be at least 1: " + threads);
+		}
+		threadCount = threads;
+	}
+	
+	/**
+	 * Counts the pairs of training words in a single column of the column matrix.
+	 * Returns the weighted count of related pairs sharing the column, unrelated
+	 * pairs sharing the column, related pairs where only one word is in the column
+	 * and all pairs where only one word is in the column, followed by the total
+	 * value of the training words in the column and the total of their counts. If
+	 * fewer than two training words appear in the column null is returned.
+	 * 
+	 * The arrays columnValues and members are scratch space that can be reused 
+	 * from one column to the next, columnValues must be all zeros and have an entry
+	 * for every word while members must also have room for every word. The values 
+	 * are set back to zero before returning.
+	 * 
+	 * @param columns
+	 * @param column
+	 * @param columnValues
+	 * @param members
+	 * @return
+	 */
+	protected double[] getFeatureCounts(SparseMatrix columns, int column, double[] columnValues, int[] members) {
+		return getFeatureCounts(columns, column, columnValues, members, null, legitWords);
+	}
+	
+	/**
+	 * Counts the pairs of training words in a single column as above, leaving out
+	 * the words marked in excluded. If excluded is null no words are left out.
+	 * legit is the total count of the training words that are not excluded.
+	 * 
+	 * @param columns
+	 * @param column
+	 * @param columnValues
+	 * @param members
+	 * @param excluded
+	 * @param legit
+	 * @return
+	 */
+	protected double[] getFeatureCounts(SparseMatrix columns, int column, double[] columnValues, int[] members, boolean[] excluded, long legit) {
+		double tfWordsInContext = 0;
+		double ctWordsInContext = 0;
+		int uniqueCount = 0;
+		
+		//place the values of the words from a context into the scratch array
+		for(int i = columns.getRowStart(column); i < columns.getRowEnd(column); i++){
+			int word = columns.getColumnId(i);
+			if(goodWords[word] && (excluded == null || !excluded[word])){
+				columnValues[word] = columns.getValue(i);
+				members[uniqueCount] = word;
+				ctWordsInContext += columns.getValue(i);
+				tfWordsInContext += wordsCount[word];
+				uniqueCount++;
+			}
+		}
 		
+		double[] toReturn = null;
+		if(uniqueCount >= 2){
+			double[] pairCts = getPairCounts(columnValues, members, uniqueCount, excluded); // counts found pairs sharing the same feautre
+			double relShareFeat = pairCts[0]; // tp
+			double unrelShareFeat = pairCts[1]; // fp
+			double relNotShareFeat = pairCts[2]; // related pairs not sharing the feature
+			double notShareFeat = ctWordsInContext * (legit-tfWordsInContext); 
+			toReturn = new double[]{relShareFeat, unrelShareFeat, relNotShareFeat, notShareFeat, ctWordsInContext, tfWordsInContext};
+		}
+		
+		for(int i = 0; i < uniqueCount; i++){
+			columnValues[members[i]] = 0;
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Finds the average weight of the columns marked in goodWeights and normalizes 
+	 * the weights so that this average is 1.0. Columns that were not marked are
+	 * given the average. If outputFile is not null the weights are printed to it.
+	 * 
+	 * @param goodWeights
+	 * @param outputFile
+	 */
+	protected void normalizeWeights(boolean[] goodWeights, String outputFile) {
 		//find average feature weight
 		double ave = 0;
 		double totalGoodWeights = 0;
@@ -307,119 +881,140 @@ public class WeightFeaturesContextSupervised {
 		LOGGER.info("Average score: " + ave);
 		
 		//normalize average to 1.0 
+		for(int i = 0; i < weights.length; i++){
+			if(goodWeights[i]){
+				weights[i] = weights[i]/ave;
+			}
+			else{
+				weights[i] = ave;
+			}
+		}
+		
 		//print out the new weights into the column weight file.
-		try{
-			BufferedWriter weightsWriter = new BufferedWriter(new FileWriter(outputFile));
-			for(int i = 0; i < weights.length; i++){
-				if(goodWeights[i]){
-					weights[i] = weights[i]/ave;
+		if(outputFile != null){
+			try{
+				BufferedWriter weightsWriter = new BufferedWriter(new FileWriter(outputFile));
+				for(int i = 0; i < weights.length; i++){
+					weightsWriter.write(i + " " + weights[i] + "\n");
 				}
-				else{
-					weights[i] = ave;
-				}
-				weightsWriter.write(i + " " + weights[i] + "\n");
+		
+				weightsWriter.close();
+			}
+			catch(Exception e){
+				LOGGER.warning(e.getMessage());
 			}
-	
-			weightsWriter.close();
-		}
-		catch(Exception e){
-			LOGGER.warning(e.getMessage());
 		}
 	}
 
 
 	/**
-	 * Counts the number of pairs of words in the same semicolon group from the provided hashSet.
+	 * Counts the number of pairs of words in the same semicolon group among the words of a 
+	 * column. columnValues holds the value of every word in the column and zero for all
+	 * other words, and the first memberCount entries of members are the words in the column.
 	 * 
-	 * Counts words sharing the context that are related, and counts words sharing the context that
-	 * are unrelated.
+	 * Counts words sharing the context that are related, words sharing the context that
+	 * are unrelated and related words where the second word appears in a different context.
+	 * Only the related pairs are visited, the count of all pairs of different words sharing
+	 * the context is the square of the sum of their values minus the sum of the squares, 
+	 * so the unrelated count is what remains after the related pairs are taken out.
+	 * Related words marked in excluded are skipped, excluded may be null.
 	 * 
-	 * @param words
+	 * @param columnValues
+	 * @param members
+	 * @param memberCount
+	 * @param excluded
 	 * @return
 	 */
-	protected double[] getPairCounts(Hashtable<Integer, Double> words) {
+	protected double[] getPairCounts(double[] columnValues, int[] members, int memberCount, boolean[] excluded) {
 		double positiveCount = 0;
-		double negativeCount = 0;
-		for(int word1 : words.keySet()){
-			for(int word2 : words.keySet()){
-				if(word1 != word2){
-					if(relatedPairs[word1].contains(word2)){
-						positiveCount+= words.get(word1) * words.get(word2); //pairs with feature same SG
+		double relatedTotal = 0;
+		double sum = 0;
+		double sumOfSquares = 0;
+		for(int i = 0; i < memberCount; i++){
+			int word1 = members[i];
+			double value1 = columnValues[word1];
+			sum += value1;
+			sumOfSquares += value1 * value1;
+			for(int word2 : relatedPairs[word1]){
+				if(excluded == null || !excluded[word2]){
+					double value2 = columnValues[word2];
+					if(value2 != 0){
+						positiveCount += value1 * value2; //pairs with feature same SG
 					}
 					else{
-						negativeCount+= words.get(word1) * words.get(word2); // pairs with feature different SG
+						relatedTotal += value1 * wordsCount[word2]; //related pairs with word2 in another feature
 					}
 				}
 			}
 		}
-		return new double[]{positiveCount, negativeCount};//return both
+		double negativeCount = sum * sum - sumOfSquares - positiveCount; // pairs with feature different SG
+		return new double[]{positiveCount, negativeCount, relatedTotal};//return all three
 	}
-	
+
 	/**
-	 * Counts all pairs of words related by the training data in the given HashSet.
-	 * 
-	 * Counts number of related words that appear in different contexts.
+	 * Identifies pairs of words that appear on the same line in the training data and record 
+	 * them in sorted arrays. This allows for fast lookups of synonyms.
 	 * 
-	 * @param words
-	 * @return
+	 * Rather than testing every pair of words, an index of the matrix rows found on each line
+	 * of the training data is built and pairs are only generated from the rows sharing a line.
 	 */
-	protected double countRelatedPairsInDifferentContexts(Hashtable<Integer, Double> words) {
-		double relatedTotal = 0;
-		for(int word1 : words.keySet()){
-			for(int word2 : relatedPairs[word1]){
-				if(!words.containsKey(word2)){
-					relatedTotal += words.get(word1) * wordsCount.get(word2);
+	public void colleceRelatedPairs() {
+		//count the training words on each line
+		int[][] rowLines = new int[words.size()][];
+		int[] lineSizes = new int[binDst.getLineCount()];
+		for(int i = 0; i < words.size(); i++){
+			if(goodWords[i]){
+				rowLines[i] = binDst.getLineIds(words.get(i));
+				for(int line : rowLines[i]){
+					lineSizes[line]++;
 				}
 			}
+			else{
+				rowLines[i] = new int[0];
+			}
 		}
-		return relatedTotal;
-	}
-
-	/**
-	 * Identifies pairs of words that appear on the same line in the training data and record 
-	 * them in a hashtable. This allows for fast lookups of synonyms.
-	 */
-	@SuppressWarnings("unchecked")
-	public void colleceRelatedPairs() {
-		relatedPairs = new HashSet[words.size()];
-		for(int i = 0; i < relatedPairs.length; i++){
-			Set<Integer> related = new HashSet<Integer>();
-			relatedPairs[i] = related;
+		
+		//index the rows found on each line
+		int[][] lineRows = new int[lineSizes.length][];
+		for(int line = 0; line < lineRows.length; line++){
+			lineRows[line] = new int[lineSizes[line]];
+			lineSizes[line] = 0;
+		}
+		for(int i = 0; i < rowLines.length; i++){
+			for(int line : rowLines[i]){
+				lineRows[line][lineSizes[line]] = i;
+				lineSizes[line]++;
+			}
 		}
 		
+		//rows sharing a line are related
+		relatedPairs = new int[words.size()][];
+		int[] lastSeen = new int[words.size()];
+		Arrays.fill(lastSeen, -1);
+		int[] related = new int[16];
 		long uniquePairs = 0;
 		for(int i = 0; i < words.size(); i++){
-			if(goodWords.get(i)){
-				String word1 = words.get(i);
-				for(int j = i+1; j < words.size(); j++){
-					if(goodWords.get(j)){
-						String word2 = words.get(j);
-						
-						uniquePairs++;
-						int similarity = binDst.getSimilarity(word1, word2);
-						if(similarity == 1){
-							//System.out.println(word1 + "\t" + word2);
-							addPair(i, j);
-							addPair(j, i);
+			int relatedCount = 0;
+			for(int line : rowLines[i]){
+				for(int j : lineRows[line]){
+					if(j != i && lastSeen[j] != i){
+						lastSeen[j] = i;
+						if(relatedCount == related.length){
+							related = Arrays.copyOf(related, related.length * 2);
 						}
+						related[relatedCount] = j;
+						relatedCount++;
 					}
 				}
 			}
+			relatedPairs[i] = Arrays.copyOf(related, relatedCount);
+			Arrays.sort(relatedPairs[i]);
+			uniquePairs += relatedCount;
 			if(i % 1000 == 0){
 				LOGGER.info("Pairs: " + i);
 			}
 		}
-		LOGGER.info("Unique Pairs: " + uniquePairs);
-	}
-
-	/**
-	 * Adds related words to a hashtable.
-	 * 
-	 * @param word1
-	 * @param word2
-	 */
-	private void addPair(int word1, int word2) {
-		relatedPairs[word1].add(word2);
+		LOGGER.info("Related Pairs: " + uniquePairs/2);
 	}
 
 	/**
@@ -433,6 +1028,8 @@ public class WeightFeaturesContextSupervised {
 	 */
 	public void loadRows(String fname) {
 		int goodWordCount = 0;
+		wordsCount = new double[1024];
+		goodWords = new boolean[1024];
 		try {
 			BufferedReader wordsReader = new BufferedReader(new FileReader(fname));
 
@@ -449,29 +1046,60 @@ public class WeightFeaturesContextSupervised {
 				else {
 					String parts[] = line.split(";");
 					//System.out.println(line);
+					int word = words.size();
 					words.add(parts[0]);
+					if(word == wordsCount.length){
+						wordsCount = Arrays.copyOf(wordsCount, wordsCount.length * 2);
+						goodWords = Arrays.copyOf(goodWords, goodWords.length * 2);
+					}
 					double wordCount = Double.parseDouble(parts[2]);
-					wordsCount.add(wordCount);
+					wordsCount[word] = wordCount;
 					if(!stopWords.contains(parts[0]) && binDst.existsWord(parts[0])){
 						legitWords += wordCount;
-						goodWords.add(true);
+						goodWords[word] = true;
 						goodWordCount++;
 					}
-					else{
-						goodWords.add(false);
-					}
 				}
 			}
 	
 		} catch (Exception e) {
 	    	 LOGGER.warning(e.getMessage());
 		}
+		wordsCount = Arrays.copyOf(wordsCount, words.size());
+		goodWords = Arrays.copyOf(goodWords, words.size());
 		LOGGER.info("Unique training words: " + goodWordCount);
 		LOGGER.info("Total words: " + words.size());
 		LOGGER.info("Occurrences of training words: " + legitWords);
 	}
 	
 
+	/**
+	 * Loads the words of a matrix held in memory. The count of each word is the
+	 * sum of its row, which is the same as the tf column of row_features.csv.
+	 * Words are marked as usable for training just as they are in loadRows above.
+	 * 
+	 * @param labels
+	 * @param matrix
+	 */
+	public void loadRows(List<String> labels, SparseMatrix matrix) {
+		int goodWordCount = 0;
+		double[] rowSums = matrix.getRowSums();
+		wordsCount = Arrays.copyOf(rowSums, labels.size());
+		goodWords = new boolean[labels.size()];
+		for(int i = 0; i < labels.size(); i++){
+			String word = labels.get(i);
+			words.add(word);
+			if(!stopWords.contains(word) && binDst.existsWord(word)){
+				legitWords += rowSums[i];
+				goodWords[i] = true;
+				goodWordCount++;
+			}
+		}
+		LOGGER.info("Unique training words: " + goodWordCount);
+		LOGGER.info("Total words: " + words.size());
+		LOGGER.info("Occurrences of training words: " + legitWords);
+	}
+
 	/**
 	 * This function loads a list of words that appear in the training set but need
 	 * to be removed for the purposes of testing later on. In the current version
@@ -480,6 +1108,18 @@ public class WeightFeaturesContextSupervised {
 	 * @param fname
 	 */
 	public void loadExemptWords(String fname) {
+		stopWords.addAll(readWords(fname));
+	}
+	
+	/**
+	 * Reads a file of words, one per line, and returns them as a set. Only
+	 * the first word on each line is used.
+	 * 
+	 * @param fname
+	 * @return
+	 */
+	public static Set<String> readWords(String fname) {
+		Set<String> toReturn = new HashSet<String>();
 		try {
 			BufferedReader wordsReader = new BufferedReader(new FileReader(fname));
 	         
@@ -493,13 +1133,14 @@ public class WeightFeaturesContextSupervised {
 	
 				else {
 					String[] parts = line.split(" ");
-					stopWords.add(parts[0]);
+					toReturn.add(parts[0]);
 				}
 			}
 	
 		} catch (Exception e) {
 	    	 LOGGER.warning(e.getMessage());
 		}
+		return toReturn;
 	}
 
 }
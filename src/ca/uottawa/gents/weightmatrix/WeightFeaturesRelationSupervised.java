@@ -1,12 +1,16 @@
 package ca.uottawa.gents.weightmatrix;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.FileReader;
-import java.io.FileWriter;
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
+import ca.uottawa.gents.matrix.SparseMatrix;
+
 
 /**
  * This class performs supervised Matrix weighting. Much like WeightFeaturesUnsupervised this program takes
@@ -23,10 +27,10 @@ import java.util.logging.Logger;
  * weights is not essential for this program, but may be of some interest to those running it.
  * 
  * To Run Program: 
- * java WeightFeaturesUnsupervised <PMI|LL|Dice|Tscore|Zscore|Chi2> <training data> <row_features.csv file> <row matrix file> <column matrix file>
+ * java WeightFeaturesUnsupervised <PMI|LL|Dice|Tscore|Zscore|Chi2> <training data> <row_features.csv file> <row matrix file> <column matrix file> <column boundary file> [-weightsOnly]
  * 
  * Three new files will be created, new row and column matrix files and another file indicating the weights of the 
- * different contexts.
+ * different contexts. If -weightsOnly is given only the file of column weights is written.
  * 
  * This class extends WeightFeaturesContextSupervised as almost all the methods are identical except for one
  * that determines weights for each context. A new method performs this task.
@@ -45,7 +49,7 @@ public class WeightFeaturesRelationSupervised extends WeightFeaturesContextSuper
 	 */
 	public static void main(String[] args) {
 		if(args.length < 6){
-			LOGGER.info("To Run Program: java WeightFeaturesRelationSupervised <PMI|LL|Dice|Tscore|Zscore|Chi2> <training data> <row_features.csv file> <row matrix file> <column matrix file> <column boundary file>");
+			LOGGER.info("To Run Program: java WeightFeaturesRelationSupervised <PMI|LL|Dice|Tscore|Zscore|Chi2> <training data> <row_features.csv file> <row matrix file> <column matrix file> <column boundary file> [-weightsOnly]");
 			return;
 		}
 		else{
@@ -56,6 +60,7 @@ public class WeightFeaturesRelationSupervised extends WeightFeaturesContextSuper
 			String columnMatrixFile = args[4];
 			String colBoundFile = args[5];
 			String outputColWeights = args[4].substring(0, args[4].lastIndexOf("/"))+"/columns_relation_"+association+".txt";
+			boolean weightsOnly = args.length > 6 && "-weightsOnly".equals(args[6]);
 			
 			//names of re-weighted files
 			String newRowMatrixFile = rowMatrixFile+".r-"+association;
@@ -72,12 +77,14 @@ public class WeightFeaturesRelationSupervised extends WeightFeaturesContextSuper
 			//loads columns and calculates the weights for each feature
 			wfrs.loadColumnFeatures(columnMatrixFile, colBoundFile, outputColWeights);
 			
-			//creates new row matrix using these features
-			wfrs.weightRowFeatures(rowMatrixFile, newRowMatrixFile);
-			
-			//translates the row matrix into a column matrix using the function in WeightFeaturesUnsupervised
-			WeightFeaturesUnsupervised wfu = new WeightFeaturesUnsupervised();
-			wfu.rowsToColumns(newRowMatrixFile, newColMatrixFile);
+			if(!weightsOnly){
+				//creates new row matrix using these features
+				wfrs.weightRowFeatures(rowMatrixFile, newRowMatrixFile);
+				
+				//translates the row matrix into a column matrix using the function in WeightFeaturesUnsupervised
+				WeightFeaturesUnsupervised wfu = new WeightFeaturesUnsupervised();
+				wfu.rowsToColumns(newRowMatrixFile, newColMatrixFile);
+			}
 		}
 	}
 	
@@ -111,143 +118,156 @@ public class WeightFeaturesRelationSupervised extends WeightFeaturesContextSuper
 	 * synonyms where only one is found in that column, number of non synonyms in 
 	 * that column and the number of non-synonyms where only one is found in that 
 	 * column. These will then be used to measure the association between the 
-	 * column and "synonymy" as defined by the training data.
+	 * column and "synonymy" as defined by the training data. The column matrix
+	 * is read and counted a block of columns at a time.
 	 * 
 	 * @param fname
 	 * @param boundaryFname
 	 * @param outputFile
 	 */
 	public void loadColumnFeatures(String fname, String boundaryFname, String outputFile) {
+		scoreRelations(getAllFeatureCounts(fname), boundaryFname, outputFile);
+	}
+	
+	/**
+	 * Finds the weights of groups of columns from a column matrix held in memory,
+	 * see above. If outputFile is null the column weights are not written out.
+	 * 
+	 * Columns are sorted by their context rather than their relation, so one relation
+	 * can be found in several places in the boundary file. All the columns of a relation
+	 * are counted together wherever they are in the matrix. The columns themselves are
+	 * counted on several threads and their counts then added up for each relation.
+	 * 
+	 * @param columns
+	 * @param boundaryFname
+	 * @param outputFile
+	 */
+	public void loadColumnFeatures(SparseMatrix columns, String boundaryFname, String outputFile) {
+		scoreRelations(getAllFeatureCounts(columns), boundaryFname, outputFile);
+	}
+	
+	/**
+	 * Adds up the counts of the columns of each relation and finds the weight of
+	 * every relation, which is given to all of its columns.
+	 * 
+	 * @param allFeatureCounts
+	 * @param boundaryFname
+	 * @param outputFile
+	 */
+	private void scoreRelations(double[][] allFeatureCounts, String boundaryFname, String outputFile) {
 		int totalFeatureCt = 0;
-		int startValue = 0;
-		String relation = "";
-		int featureNumber = 0;
-		int boundaryValue = 0;
+		List<String> relations = new ArrayList<String>();
+		int[] columnRelations = loadRelations(boundaryFname, allFeatureCounts.length, relations);
+		
+		//add up tp, fp, fn and tn over all the columns of each relation
+		double[][] relationCounts = new double[relations.size()][4];
+		int[] relationSizes = new int[relations.size()];
+		for(int featureNumber = 0; featureNumber < allFeatureCounts.length; featureNumber++){
+			int relation = columnRelations[featureNumber];
+			double[] featureCounts = allFeatureCounts[featureNumber];
+			if(relation != -1){
+				relationSizes[relation]++;
+				if(featureCounts != null){
+					totalFeatureCt ++;
+					
+					relationCounts[relation][0] += featureCounts[0];
+					relationCounts[relation][1] += featureCounts[1];
+					relationCounts[relation][2] += featureCounts[2];
+					relationCounts[relation][3] += featureCounts[3] - featureCounts[2]; // pairs unrelated & not sharing feature
+				}
+			}
+		}
+		
+		//find the association for each relation
+		double[] relationWeights = new double[relations.size()];
+		boolean[] relationGood = new boolean[relations.size()];
+		for(int relation = 0; relation < relations.size(); relation++){
+			double truePos = relationCounts[relation][0];
+			double falsePos = relationCounts[relation][1];
+			double falseNeg = relationCounts[relation][2];
+			double trueNeg = relationCounts[relation][3];
+			LOGGER.info(relations.get(relation) + " : " + relationSizes[relation] + " columns");
+			
+			double value = MatrixWeighter.getAssociation(truePos, falsePos, falseNeg, trueNeg, type);
+			boolean isGood = true;
+			if(falseNeg > 0 && (Double.isNaN(value) || Double.isInfinite(value))){
+				LOGGER.severe("Error at feature: " + relations.get(relation) +"\n" +(long)truePos + " " + (long)falsePos + "\n" + (long)falseNeg + " " + (long)trueNeg + "\n" + value);
+			}
+			if(truePos + falsePos + trueNeg + falseNeg == 0){
+				isGood = false;
+				value = 1;
+			}
+			relationWeights[relation] = value;
+			relationGood[relation] = isGood;
+		}
+		
 		boolean[] goodWeights = new boolean[weights.length];
+		for(int featureNumber = 0; featureNumber < allFeatureCounts.length; featureNumber++){
+			int relation = columnRelations[featureNumber];
+			if(relation != -1){
+				weights[featureNumber] = relationWeights[relation];
+				goodWeights[featureNumber] = relationGood[relation];
+			}
+		}
+		LOGGER.info("Features included: " + totalFeatureCt);
+		
+		normalizeWeights(goodWeights, outputFile);
+	}
+	
+	/**
+	 * Reads the boundary file and finds the relation of every column. Each line
+	 * of the file gives a relation and the column where its run of columns ends,
+	 * the run starting where the one before it ended. Every relation is given an
+	 * id, its position in the list relations, and the returned array gives the 
+	 * relation id of each column. The last run is taken to continue to the last 
+	 * column, columns that are not in any run are given -1.
+	 * 
+	 * @param boundaryFname
+	 * @param columnCount
+	 * @param relations
+	 * @return
+	 */
+	public int[] loadRelations(String boundaryFname, int columnCount, List<String> relations) {
+		int[] columnRelations = new int[columnCount];
+		Arrays.fill(columnRelations, -1);
+		Map<String, Integer> relationIds = new HashMap<String, Integer>();
 		try {
-			BufferedReader matrixReader = new BufferedReader(new FileReader(fname));
 			BufferedReader boundaryReader = new BufferedReader(new FileReader(boundaryFname));
-			matrixReader.readLine(); // get first line
-			
-			double truePos = 0;
-			double falsePos = 0;
-			double trueNeg = 0;
-			double falseNeg = 0;
+			int startValue = 0;
+			int relation = -1;
 			
 			for ( ; ; ) {
+				String boundaryLine = boundaryReader.readLine();
 				
-				if(featureNumber == boundaryValue){
-					String boundaryLine = boundaryReader.readLine();
-
-					if(boundaryLine == null){
-						boundaryReader.close();
-					}
-					else{
-						String[] bParts = boundaryLine.split(" := ");
-						boundaryValue = Integer.parseInt(bParts[1]);
-						LOGGER.info(relation + " : " + startValue + " " + featureNumber);
-						
-						double value = 1;
-						boolean isGood = true;
-						value = MatrixWeighter.getAssociation(truePos, falsePos, falseNeg, trueNeg, type);
-						if(falseNeg > 0 && (Double.isNaN(value) || Double.isInfinite(value))){
-							LOGGER.severe("Error at feature: " + relation + "\tnumber: "+featureNumber +"\n" +(long)truePos + " " + (long)falsePos + "\n" + (long)falseNeg + " " + (long)trueNeg + "\n" + value);
-						}
-						if(truePos + falsePos + trueNeg + falseNeg == 0){
-							isGood = false;
-							value = 1;
-						}
-						for(int i = startValue; i < featureNumber; i++){
-							weights[i] = value;
-							goodWeights[i] = isGood;
-						}
-						relation = bParts[0];
-						
-						truePos = 0;
-						falsePos = 0;
-						trueNeg = 0;
-						falseNeg = 0;
-	
-						startValue = featureNumber;
-					}
-				}
-				String line = matrixReader.readLine();
-	
-				if (line == null) {
-					matrixReader.close();
+				if(boundaryLine == null){
+					boundaryReader.close();
 					break;
 				}
-				else {
-					String[] parts = line.split(" ");
-					double tfWordsInContext = 0;
-					double ctWordsInContext = 0;
-					int uniqueCount = 0;
-					Hashtable<Integer, Double> wordsInCurrFeat = new Hashtable<Integer, Double>();
-					for(int i = 0; i < parts.length; i+=2){
-						if(parts.length > 1 && goodWords.get(Integer.parseInt(parts[i]))){
-							wordsInCurrFeat.put(Integer.parseInt(parts[i]), Double.parseDouble(parts[i+1]));
-							ctWordsInContext += Double.parseDouble(parts[i+1]);
-							tfWordsInContext += wordsCount.get(Integer.parseInt(parts[i]));
-							uniqueCount++;
+				else{
+					String[] bParts = boundaryLine.split(" := ");
+					if(bParts.length == 2){
+						if(!relationIds.containsKey(bParts[0])){
+							relationIds.put(bParts[0], relations.size());
+							relations.add(bParts[0]);
 						}
+						relation = relationIds.get(bParts[0]);
+						int boundaryValue = Math.min(Integer.parseInt(bParts[1]), columnCount);
+						for(int i = startValue; i < boundaryValue; i++){
+							columnRelations[i] = relation;
+						}
+						startValue = Math.max(startValue, boundaryValue);
 					}
-					if(uniqueCount >= 2){
-						double[] pairCts = getPairCounts(wordsInCurrFeat); // counts found pairs sharing the same feautre
-						double relShareFeat = pairCts[0]; 
-						double unrelShareFeat = pairCts[1]; 
-						double relNotShareFeat = countRelatedPairsInDifferentContexts(wordsInCurrFeat); // counts all pairs sharing the same feature
-						
-						
-						totalFeatureCt ++;
-						double notShareFeat = ctWordsInContext * (legitWords-tfWordsInContext); 
-						
-						truePos += relShareFeat;
-						falsePos += unrelShareFeat;
-						falseNeg += relNotShareFeat;
-						trueNeg += notShareFeat - falseNeg; // pairs unrelated & not sharing feature
-						
-					}
-					featureNumber++;
 				}
 			}
-	
-		} catch (Exception e) {
-			LOGGER.warning(e.getMessage());
-		}
-		LOGGER.info("Features included: " + totalFeatureCt);
-		double ave = 0;
-		double totalGoodWeights = 0;
-		for(int i = 0; i < weights.length; i++){
-			if(goodWeights[i]){
-				ave += weights[i];
-				totalGoodWeights++;
-			}
-		}
-		ave = ave / totalGoodWeights;
-		if(Double.isNaN(ave)){
-			LOGGER.warning("Not a number");
-		}
-		LOGGER.info("Average score: " + ave);
-		
-		//normalize average to 1.0
-
-		try{
-			BufferedWriter weightsWriter = new BufferedWriter(new FileWriter(outputFile));
-			for(int i = 0; i < weights.length; i++){
-				if(goodWeights[i]){
-					weights[i] = weights[i]/ave;
-				}
-				else{
-					weights[i] = ave;
-				}
-				weightsWriter.write(i + " " + weights[i] + "\n");
+			
+			for(int i = startValue; i < columnCount && relation != -1; i++){
+				columnRelations[i] = relation;
 			}
-	
-			weightsWriter.close();
-		}
-		catch(Exception e){
+		} catch (Exception e) {
 			LOGGER.warning(e.getMessage());
 		}
+		LOGGER.info("Relations: " + relations.size());
+		return columnRelations;
 	}
 
 }
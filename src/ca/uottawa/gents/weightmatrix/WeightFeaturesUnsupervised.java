@@ -4,10 +4,13 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
+import ca.uottawa.gents.matrix.SparseMatrix;
 
 
 /**
@@ -24,6 +27,13 @@ import java.util.logging.Logger;
  * 
  * java WeightFeaturesUnsupervised <PMI|LL|Dice|Tscore|Zscore|Chi2> <rlabel file> <row matrix file> <column matrix file>
  * 
+ * Several measures can be given at once as a comma separated list, e.g. PMI,LL,Dice. The matrix is
+ * then read only once and each measure is written to its own matrix_crs.mat.u-TYPE and 
+ * matrix_ccs.mat.u-TYPE files.
+ * 
+ * A matrix already in memory, such as one from BuildMatrix.generateMatrix, can be re-weighted 
+ * without any files by calling loadColumnFeatures and weightRowFeatures with a SparseMatrix.
+ * 
  * @author akennedy
  *
  */
@@ -33,6 +43,10 @@ public class WeightFeaturesUnsupervised {
 	public List<Double> featureWeight;
 	public double totalWeight;
 	public double[] weights;
+	
+	//bytes of memory used for each entry when transposing, an int row id and a double value
+	private static final int BYTES_PER_ENTRY = 12;
+	private long memoryBudget;
 
 	/**
 	 * This program takes in the part-of-speech (POS), the association measure (TYPE) the directory 
@@ -46,16 +60,19 @@ public class WeightFeaturesUnsupervised {
 			LOGGER.info("To Run Program: java WeightFeaturesUnsupervised <PMI|LL|Dice|Tscore|Zscore|Chi2> <rlabel file> <row matrix file> <column matrix file>");
 		}
 		else{
-			String association = args[0]; // PMI
+			String[] associations = args[0].split(","); // PMI or PMI,LL,Dice
 			String rlabelFile = args[1];// "/Users/akennedy/Research/buildMatrix/finalMatrix_"+POS+"
 			String rowMatrixFile = args[2]; // finalMatrix_n
 			String columnMatrixFile = args[3];
 			
 			//names of reweighted files
-			String newRowMatrixFile = rowMatrixFile+".u-"+association;
-			String newColMatrixFile = columnMatrixFile+".u-"+association;
-			
-			LOGGER.info("Association measure: " + association);
+			String[] newRowMatrixFiles = new String[associations.length];
+			String[] newColMatrixFiles = new String[associations.length];
+			for(int i = 0; i < associations.length; i++){
+				newRowMatrixFiles[i] = rowMatrixFile+".u-"+associations[i];
+				newColMatrixFiles[i] = columnMatrixFile+".u-"+associations[i];
+				LOGGER.info("Association measure: " + associations[i]);
+			}
 			
 			WeightFeaturesUnsupervised wfu = new WeightFeaturesUnsupervised();
 	
@@ -65,11 +82,13 @@ public class WeightFeaturesUnsupervised {
 			//loads the column matrix
 			wfu.loadColumnFeatures(columnMatrixFile);
 			
-			//loads the row matrix and performs all re-weighting.
-			wfu.weightRowFeatures(rowMatrixFile, newRowMatrixFile, association);
+			//loads the row matrix once and performs the re-weighting for every measure.
+			wfu.weightRowFeatures(rowMatrixFile, newRowMatrixFiles, associations);
 	
-			//create new column matrix
-			wfu.rowsToColumns(newRowMatrixFile, newColMatrixFile);
+			//create new column matrices
+			for(int i = 0; i < associations.length; i++){
+				wfu.rowsToColumns(newRowMatrixFiles[i], newColMatrixFiles[i]);
+			}
 		}
 	}
 
@@ -80,6 +99,7 @@ public class WeightFeaturesUnsupervised {
 		words = new ArrayList<String>();
 		featureWeight = new ArrayList<Double>();
 		totalWeight = 0;
+		memoryBudget = Runtime.getRuntime().maxMemory() / 2;
 	}
 
 	/**
@@ -91,12 +111,28 @@ public class WeightFeaturesUnsupervised {
 	 * @param outName
 	 */
 	public void weightRowFeatures(String fname, String outName, String type) {
+		weightRowFeatures(fname, new String[]{outName}, new String[]{type});
+	}
+
+	/**
+	 * Re-weights the matrix with several measures of association at once. The input row
+	 * matrix is read a single time and the confusion matrix of every entry is shared
+	 * between the measures. The re-weighted matrix for types[i] is written to outNames[i].
+	 * 
+	 * @param fname
+	 * @param outNames
+	 * @param types
+	 */
+	public void weightRowFeatures(String fname, String[] outNames, String[] types) {
 		try {
-			BufferedWriter matrixWriter = new BufferedWriter(new FileWriter(outName));
+			BufferedWriter[] matrixWriters = new BufferedWriter[outNames.length];
 			
 			BufferedReader matrixReader = new BufferedReader(new FileReader(fname));
 			String first = matrixReader.readLine(); // get first line
-			matrixWriter.write(first + "\n");
+			for(int m = 0; m < matrixWriters.length; m++){
+				matrixWriters[m] = new BufferedWriter(new FileWriter(outNames[m]));
+				matrixWriters[m].write(first + "\n");
+			}
 			
 			//read from the row matrix file
 			for ( ; ; ) {
@@ -104,8 +140,10 @@ public class WeightFeaturesUnsupervised {
 	
 				if (line == null) {
 					matrixReader.close();
-					matrixWriter.flush();
-					matrixWriter.close();
+					for(BufferedWriter matrixWriter : matrixWriters){
+						matrixWriter.flush();
+						matrixWriter.close();
+					}
 					break;
 				}
 	
@@ -118,23 +156,20 @@ public class WeightFeaturesUnsupervised {
 					}
 					
 					for(int i = 1; i < parts.length; i+=2){ // calculate weights for each entry in the row
-						double columnWeight = featureWeight.get(Integer.parseInt(parts[i-1]));
-						
-						double truePos = Double.parseDouble(parts[i]);
-						double falsePos = rowWeight-truePos;
-						double falseNeg = columnWeight-truePos;
-						double trueNeg = totalWeight-(truePos +falsePos +falseNeg);
-						
-						//create new weight
-						double value = MatrixWeighter.getAssociation(truePos, falsePos, falseNeg, trueNeg, type);
+						//create new weights
+						double[] values = getEntryWeights(Integer.parseInt(parts[i-1]), Double.parseDouble(parts[i]), rowWeight, types);
 						
 						//print new value unless it is extremely small 
-						if(value > 0.000000000000000000001){
-							matrixWriter.write(parts[i-1] + " " + value + " ");
+						for(int m = 0; m < values.length; m++){
+							if(values[m] > 0.000000000000000000001){
+								matrixWriters[m].write(parts[i-1] + " " + values[m] + " ");
+							}
 						}
 					}
 					
-					matrixWriter.write("\n");
+					for(BufferedWriter matrixWriter : matrixWriters){
+						matrixWriter.write("\n");
+					}
 				}
 			}
 				
@@ -143,6 +178,96 @@ public class WeightFeaturesUnsupervised {
 		}
 	}
 
+	/**
+	 * Re-weights a matrix held in memory and returns the re-weighted matrix. 
+	 * loadColumnFeatures must have been called on the same matrix first.
+	 * 
+	 * @param matrix
+	 * @param type
+	 * @return
+	 */
+	public SparseMatrix weightRowFeatures(SparseMatrix matrix, String type) {
+		return weightRowFeatures(matrix, new String[]{type})[0];
+	}
+	
+	/**
+	 * Re-weights a matrix held in memory with several measures of association at once,
+	 * returning one new matrix for each measure in types.
+	 * 
+	 * @param matrix
+	 * @param types
+	 * @return
+	 */
+	public SparseMatrix[] weightRowFeatures(SparseMatrix matrix, String[] types) {
+		int entries = matrix.getEntryCount();
+		int[][] pointers = new int[types.length][matrix.getRowCount()+1];
+		int[][] ids = new int[types.length][entries];
+		double[][] vals = new double[types.length][entries];
+		int[] count = new int[types.length];
+		
+		double[] rowWeights = matrix.getRowSums();
+		for(int row = 0; row < matrix.getRowCount(); row++){
+			for(int i = matrix.getRowStart(row); i < matrix.getRowEnd(row); i++){
+				double[] values = getEntryWeights(matrix.getColumnId(i), matrix.getValue(i), rowWeights[row], types);
+				for(int m = 0; m < values.length; m++){
+					if(values[m] > 0.000000000000000000001){
+						ids[m][count[m]] = matrix.getColumnId(i);
+						vals[m][count[m]] = values[m];
+						count[m]++;
+					}
+				}
+			}
+			for(int m = 0; m < types.length; m++){
+				pointers[m][row+1] = count[m];
+			}
+		}
+		
+		SparseMatrix[] weighted = new SparseMatrix[types.length];
+		for(int m = 0; m < types.length; m++){
+			weighted[m] = new SparseMatrix(matrix.getRowCount(), matrix.getColumnCount(), pointers[m], 
+					Arrays.copyOf(ids[m], count[m]), Arrays.copyOf(vals[m], count[m]));
+		}
+		return weighted;
+	}
+	
+	/**
+	 * Builds the confusion matrix of a single entry from its value, the weight of its
+	 * row and the weight of its column and returns the new weight of the entry for
+	 * each measure of association.
+	 * 
+	 * @param column
+	 * @param value
+	 * @param rowWeight
+	 * @param types
+	 * @return
+	 */
+	private double[] getEntryWeights(int column, double value, double rowWeight, String[] types) {
+		double columnWeight = featureWeight.get(column);
+		
+		double truePos = value;
+		double falsePos = rowWeight-truePos;
+		double falseNeg = columnWeight-truePos;
+		double trueNeg = totalWeight-(truePos +falsePos +falseNeg);
+		
+		return MatrixWeighter.getAssociations(truePos, falsePos, falseNeg, trueNeg, types);
+	}
+
+	/**
+	 * Finds the weight of every column and the total weight of a matrix held
+	 * in memory. This does the same job as loadColumnFeatures does for a column
+	 * matrix file.
+	 * 
+	 * @param matrix
+	 */
+	public void loadColumnFeatures(SparseMatrix matrix) {
+		double[] columnSums = matrix.getColumnSums();
+		for(int i = 0; i < columnSums.length; i++){
+			featureWeight.add(i, columnSums[i]);
+			totalWeight += columnSums[i];
+		}
+		LOGGER.info("weight: "+totalWeight);
+	}
+
 	/**
 	 * Opens the file passed as an argument and loads the sparse matrix by columns.
 	 * Each column is treated as a feature and loaded into the TreeMap featureWeight.
@@ -224,30 +349,24 @@ public class WeightFeaturesUnsupervised {
 	 * This method can be called after the row matrix has been re-weighted. It takes
 	 * two arguments the row matrix and the column matrix that is to be created.
 	 * 
+	 * The row matrix is first read to count the entries in each column. Columns are 
+	 * then gathered into bands that fit in the memory budget and the row matrix is 
+	 * read once more for each band, filling arrays of row ids and values that are
+	 * written out column by column. A matrix that fits in the budget is transposed
+	 * in two passes, larger ones take more passes but never more memory.
+	 * 
 	 * @param fname
 	 * @param outFile
 	 */
 	public void rowsToColumns(String fname, String outFile) {
 		try {
-			BufferedWriter colMatrixWriter = new BufferedWriter(new FileWriter(outFile));
 			BufferedReader rowMatrixReader = new BufferedReader(new FileReader(fname));
-			String line = rowMatrixReader.readLine(); // get first line
+			String first = rowMatrixReader.readLine(); // get first line
+			String line;
 			
-			colMatrixWriter.write(line + "\n");
-
-			//initialize arrays for IDs of contexts and their values.
-			String[] firstBreak = line.split(" ");
-			@SuppressWarnings("unchecked")
-			ArrayList<Integer>[] idArray = new ArrayList[Integer.parseInt(firstBreak[1])];
-			@SuppressWarnings("unchecked")
-			ArrayList<Double>[] valueArray = new ArrayList[Integer.parseInt(firstBreak[1])];
-			for(int i = 0; i < idArray.length; i++){
-				idArray[i] = new ArrayList<Integer>();
-				valueArray[i] = new ArrayList<Double>();
-			}
-			int count = 0;
-			
-			//read matrix and load it into the id and values arrays
+			//count the entries of each column
+			String[] firstBreak = first.split(" ");
+			int[] columnCounts = new int[Integer.parseInt(firstBreak[1])];
 			for ( ; ; ) {
 				line = rowMatrixReader.readLine();
 	
@@ -258,33 +377,31 @@ public class WeightFeaturesUnsupervised {
 				else {
 					String[] parts = line.split(" ");
 					for(int i = 1; i < parts.length; i += 2){
-						//valueArray[Integer.parseInt(parts[i])] += count + " " + parts[i+1]+ " ";
-						idArray[Integer.parseInt(parts[i-1])].add(count);
-						valueArray[Integer.parseInt(parts[i-1])].add(Double.parseDouble(parts[i]));
-					}
-					count++;
-					if(count %1000 == 0){
-						LOGGER.info("Rows read: " + count);
+						columnCounts[Integer.parseInt(parts[i-1])]++;
 					}
 				}
 			}
 			
-			//iterate through the value array and 
+			BufferedWriter colMatrixWriter = new BufferedWriter(new FileWriter(outFile));
+			colMatrixWriter.write(first + "\n");
 			
-			for(int i = 0; i < valueArray.length; i++){
-		        if(valueArray[i].size() > 0){
-	        		ArrayList<Integer> ids = idArray[i];
-	        		ArrayList<Double> vals = valueArray[i];
-		        	for(int j = 0; j < vals.size(); j++){
-		        		colMatrixWriter.write(ids.get(j) + " " + vals.get(j) + " ");
-		        	}
-		        	colMatrixWriter.write("\n");
-		        }
-		        else{
-		        	colMatrixWriter.write("\n");
-		        }
+			//transpose one band of columns at a time
+			long maxEntries = Math.min(Integer.MAX_VALUE - 8, Math.max(1, memoryBudget / BYTES_PER_ENTRY));
+			int bandStart = 0;
+			int passes = 0;
+			while(bandStart < columnCounts.length){
+				int bandEnd = bandStart;
+				long bandEntries = 0;
+				while(bandEnd < columnCounts.length && (bandEnd == bandStart || bandEntries + columnCounts[bandEnd] <= maxEntries)){
+					bandEntries += columnCounts[bandEnd];
+					bandEnd++;
+				}
+				transposeBand(fname, colMatrixWriter, columnCounts, bandStart, bandEnd, (int)bandEntries);
+				bandStart = bandEnd;
+				passes++;
 			}
 			colMatrixWriter.close();
+			LOGGER.info("Columns written in " + passes + " passes");
 		} 
 		catch (Exception e) {
 	    	 LOGGER.warning(e.getMessage());
@@ -292,5 +409,75 @@ public class WeightFeaturesUnsupervised {
 
 	}
 	
+	/**
+	 * Reads the row matrix and keeps only the entries of columns bandStart up to
+	 * bandEnd, placing them in arrays of row ids and values sized from the column
+	 * counts. These columns are then written to the column matrix.
+	 * 
+	 * @param fname
+	 * @param colMatrixWriter
+	 * @param columnCounts
+	 * @param bandStart
+	 * @param bandEnd
+	 * @param bandEntries
+	 * @throws IOException
+	 */
+	private void transposeBand(String fname, BufferedWriter colMatrixWriter, int[] columnCounts, int bandStart, int bandEnd, int bandEntries) throws IOException {
+		//initialize arrays for IDs of rows and their values.
+		int[] columnStarts = new int[bandEnd - bandStart + 1];
+		for(int i = bandStart; i < bandEnd; i++){
+			columnStarts[i - bandStart + 1] = columnStarts[i - bandStart] + columnCounts[i];
+		}
+		int[] next = Arrays.copyOf(columnStarts, columnStarts.length - 1);
+		int[] idArray = new int[bandEntries];
+		double[] valueArray = new double[bandEntries];
+		
+		BufferedReader rowMatrixReader = new BufferedReader(new FileReader(fname));
+		rowMatrixReader.readLine(); // skip first line
+		int count = 0;
+		
+		//read matrix and load the band's entries into the id and value arrays
+		for ( ; ; ) {
+			String line = rowMatrixReader.readLine();
+
+			if (line == null) {
+				rowMatrixReader.close();
+				break;
+			}
+			else {
+				String[] parts = line.split(" ");
+				for(int i = 1; i < parts.length; i += 2){
+					int column = Integer.parseInt(parts[i-1]);
+					if(column >= bandStart && column < bandEnd){
+						int position = next[column - bandStart]++;
+						idArray[position] = count;
+						valueArray[position] = Double.parseDouble(parts[i]);
+					}
+				}
+				count++;
+				if(count %1000 == 0){
+					LOGGER.info("Rows read: " + count);
+				}
+			}
+		}
+		
+		//write out each column in the band
+		for(int i = 0; i < bandEnd - bandStart; i++){
+			for(int j = columnStarts[i]; j < columnStarts[i+1]; j++){
+				colMatrixWriter.write(idArray[j] + " " + valueArray[j] + " ");
+			}
+			colMatrixWriter.write("\n");
+		}
+	}
+	
+	/**
+	 * Sets the number of bytes that rowsToColumns may use to hold a band of columns.
+	 * By default half of the maximum heap size is used.
+	 * 
+	 * @param bytes
+	 */
+	public void setMemoryBudget(long bytes) {
+		memoryBudget = bytes;
+	}
 
 }